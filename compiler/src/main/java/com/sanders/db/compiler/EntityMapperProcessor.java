@@ -0,0 +1,381 @@
+package com.sanders.db.compiler;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * 为每个直接继承IDColumn的实体类生成EntityMapper实现
+ * 字段映射规则与ClassInfo一致：跳过static final字段，字段名驼峰转下划线作为数据库字段名
+ * 私有字段通过getter/setter访问，无法直接访问的实体类不生成，运行时退回反射
+ * Created by sanders on 15/6/20.
+ */
+public class EntityMapperProcessor extends AbstractProcessor {
+
+    private static final String ID_COLUMN = "com.sanders.db.IDColumn";
+    private static final String MAPPER_SUFFIX = "$$Mapper";
+    private static final String PRIMARY_KEY = "_primary_key";
+    private static final String EXTERNAL_BLOB = "com.sanders.db.ExternalBlob";
+
+    /**
+     * 支持的字段类型，key为TypeMirror.toString()
+     */
+    private static final Map<String, FieldType> FIELD_TYPES = new HashMap<String, FieldType>();
+
+    static {
+        FIELD_TYPES.put("int", new FieldType(false, "cursor.getInt(%s)", "bindLong"));
+        FIELD_TYPES.put("java.lang.Integer", new FieldType(true, "cursor.getInt(%s)", "bindLong"));
+        FIELD_TYPES.put("java.lang.String", new FieldType(true, "cursor.getString(%s)", "bindString"));
+        FIELD_TYPES.put("boolean", new FieldType(false, "cursor.getInt(%s) == 1", "%s", "bindLong", "%s ? 1 : 0"));
+        FIELD_TYPES.put("java.lang.Boolean", new FieldType(true, "cursor.getInt(%s) == 1", "%s", "bindLong", "%s ? 1 : 0"));
+        FIELD_TYPES.put("long", new FieldType(false, "cursor.getLong(%s)", "bindLong"));
+        FIELD_TYPES.put("java.lang.Long", new FieldType(true, "cursor.getLong(%s)", "bindLong"));
+        FIELD_TYPES.put("double", new FieldType(false, "cursor.getDouble(%s)", "bindDouble"));
+        FIELD_TYPES.put("java.lang.Double", new FieldType(true, "cursor.getDouble(%s)", "bindDouble"));
+        FIELD_TYPES.put("float", new FieldType(false, "cursor.getFloat(%s)", "bindDouble"));
+        FIELD_TYPES.put("java.lang.Float", new FieldType(true, "cursor.getFloat(%s)", "bindDouble"));
+        FIELD_TYPES.put("byte[]", new FieldType(true, "cursor.getBlob(%s)", "bindBlob"));
+        FIELD_TYPES.put("short", new FieldType(false, "cursor.getShort(%s)", "bindLong"));
+        FIELD_TYPES.put("java.lang.Short", new FieldType(true, "cursor.getShort(%s)", "bindLong"));
+        FIELD_TYPES.put("java.util.Date", new FieldType(true, "new java.util.Date(cursor.getLong(%s))", "%s.getTime()", "bindLong", "%s.getTime()"));
+    }
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Collections.singleton("*");
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (TypeElement type : ElementFilter.typesIn(roundEnv.getRootElements())) {
+            processType(type);
+        }
+        return false;
+    }
+
+    private void processType(TypeElement type) {
+        if (isEntity(type)) {
+            List<MappedField> fields = getMappedFields(type);
+            if (fields != null && hasConstructor(type)) {
+                writeMapper(type, fields);
+            }
+        }
+        for (TypeElement inner : ElementFilter.typesIn(type.getEnclosedElements())) {
+            processType(inner);
+        }
+    }
+
+    /**
+     * 可生成映射器的实体类：非抽象、非私有、直接继承IDColumn，内部类必须是static
+     *
+     * @param type
+     * @return
+     */
+    private boolean isEntity(TypeElement type) {
+        if (type.getKind() != ElementKind.CLASS || type.getModifiers().contains(Modifier.ABSTRACT)) {
+            return false;
+        }
+        TypeMirror superType = type.getSuperclass();
+        if (superType.getKind() != TypeKind.DECLARED) {
+            return false;
+        }
+        TypeElement superElement = (TypeElement) ((DeclaredType) superType).asElement();
+        if (!ID_COLUMN.equals(superElement.getQualifiedName().toString())) {
+            return false;
+        }
+        Element element = type;
+        while (element instanceof TypeElement) {
+            TypeElement typeElement = (TypeElement) element;
+            if (typeElement.getModifiers().contains(Modifier.PRIVATE)) {
+                return false;
+            }
+            if (typeElement.getNestingKind() == NestingKind.MEMBER && !typeElement.getModifiers().contains(Modifier.STATIC)) {
+                return false;
+            }
+            if (typeElement.getNestingKind() == NestingKind.LOCAL || typeElement.getNestingKind() == NestingKind.ANONYMOUS) {
+                return false;
+            }
+            element = typeElement.getEnclosingElement();
+        }
+        return true;
+    }
+
+    private boolean hasConstructor(TypeElement type) {
+        for (ExecutableElement constructor : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+            if (constructor.getParameters().isEmpty() && !constructor.getModifiers().contains(Modifier.PRIVATE)) {
+                return true;
+            }
+        }
+        note(type, "没有可访问的无参构造方法，使用反射映射");
+        return false;
+    }
+
+    /**
+     * 解析需要映射的字段
+     *
+     * @param type
+     * @return 有字段无法访问时返回null
+     */
+    private List<MappedField> getMappedFields(TypeElement type) {
+        List<MappedField> fields = new ArrayList<MappedField>();
+        List<ExecutableElement> methods = ElementFilter.methodsIn(type.getEnclosedElements());
+        for (VariableElement field : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+            Set<Modifier> modifiers = field.getModifiers();
+            if (isConstant(modifiers)) {
+                continue;
+            }
+            if (modifiers.contains(Modifier.FINAL)) {
+                note(type, "字段" + field.getSimpleName() + "是final的，使用反射映射");
+                return null;
+            }
+            if (hasAnnotation(field, EXTERNAL_BLOB)) {
+                note(type, "字段" + field.getSimpleName() + "使用@ExternalBlob，使用反射映射");
+                return null;
+            }
+            String typeName = field.asType().toString();
+            FieldType fieldType = FIELD_TYPES.get(typeName);
+            if (fieldType == null) {
+                continue;
+            }
+            String name = field.getSimpleName().toString();
+            MappedField mapped = new MappedField();
+            mapped.column = conversionJavaFieldNameToDBFieldName(name);
+            mapped.typeName = typeName;
+            mapped.type = fieldType;
+            if (!modifiers.contains(Modifier.PRIVATE)) {
+                mapped.getter = "t." + name;
+                mapped.setter = "t." + name + " = %s";
+            } else {
+                String capitalized = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+                String getter = findMethod(methods, "get" + capitalized, 0);
+                if (getter == null && "boolean".equals(typeName)) {
+                    getter = findMethod(methods, "is" + capitalized, 0);
+                }
+                String setter = findMethod(methods, "set" + capitalized, 1);
+                if (getter == null || setter == null) {
+                    note(type, "字段" + name + "是私有的且没有getter/setter，使用反射映射");
+                    return null;
+                }
+                mapped.getter = "t." + getter + "()";
+                mapped.setter = "t." + setter + "(%s)";
+            }
+            fields.add(mapped);
+        }
+        return fields;
+    }
+
+    /**
+     * 与ClassInfo相同的规则：只跳过public/private/protected static final字段
+     * 包访问权限的static final、transient static final等字段反射时会映射，这里也不能跳过
+     *
+     * @param modifiers
+     * @return
+     */
+    private boolean isConstant(Set<Modifier> modifiers) {
+        if (modifiers.size() != 3 || !modifiers.contains(Modifier.STATIC) || !modifiers.contains(Modifier.FINAL)) {
+            return false;
+        }
+        return modifiers.contains(Modifier.PUBLIC) || modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.PROTECTED);
+    }
+
+    private boolean hasAnnotation(Element element, String annotationName) {
+        for (AnnotationMirror annotation : element.getAnnotationMirrors()) {
+            if (annotation.getAnnotationType().toString().equals(annotationName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String findMethod(List<ExecutableElement> methods, String name, int parameterCount) {
+        for (ExecutableElement method : methods) {
+            if (method.getSimpleName().contentEquals(name) && method.getParameters().size() == parameterCount
+                    && !method.getModifiers().contains(Modifier.PRIVATE) && !method.getModifiers().contains(Modifier.STATIC)) {
+                return name;
+            }
+        }
+        return null;
+    }
+
+    private void writeMapper(TypeElement type, List<MappedField> fields) {
+        PackageElement packageElement = processingEnv.getElementUtils().getPackageOf(type);
+        String packageName = packageElement.getQualifiedName().toString();
+        String entityName = type.getQualifiedName().toString();
+        String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+        String mapperName = (packageName.length() > 0 ? binaryName.substring(packageName.length() + 1) : binaryName) + MAPPER_SUFFIX;
+
+        StringBuilder java = new StringBuilder();
+        if (packageName.length() > 0) {
+            java.append("package ").append(packageName).append(";\n\n");
+        }
+        java.append("import android.content.ContentValues;\n");
+        java.append("import android.database.Cursor;\n");
+        java.append("import android.database.sqlite.SQLiteStatement;\n\n");
+        java.append("import com.sanders.db.EntityMapper;\n\n");
+        java.append("/**\n * 由EntityMapperProcessor生成，请勿修改\n */\n");
+        java.append("public final class ").append(mapperName).append(" implements EntityMapper<").append(entityName).append("> {\n\n");
+
+        java.append("    private static final String[] COLUMNS = {\"").append(PRIMARY_KEY).append("\"");
+        for (MappedField field : fields) {
+            java.append(", \"").append(field.column).append("\"");
+        }
+        java.append("};\n\n");
+
+        java.append("    @Override\n    public String[] getColumnNames() {\n        return COLUMNS;\n    }\n\n");
+
+        java.append("    @Override\n    public ").append(entityName).append(" newInstance() {\n");
+        java.append("        return new ").append(entityName).append("();\n    }\n\n");
+
+        java.append("    @Override\n    public void putValues(").append(entityName).append(" t, ContentValues values) {\n");
+        for (MappedField field : fields) {
+            if (field.type.nullable) {
+                java.append("        {\n");
+                java.append("            ").append(field.typeName).append(" value = ").append(field.getter).append(";\n");
+                java.append("            if (value != null) {\n");
+                java.append("                values.put(\"").append(field.column).append("\", ").append(String.format(field.type.putValue, "value")).append(");\n");
+                java.append("            }\n");
+                java.append("        }\n");
+            } else {
+                java.append("        values.put(\"").append(field.column).append("\", ").append(String.format(field.type.putValue, field.getter)).append(");\n");
+            }
+        }
+        java.append("    }\n\n");
+
+        java.append("    @Override\n    public void bindValues(").append(entityName).append(" t, SQLiteStatement statement) {\n");
+        for (int i = 0; i < fields.size(); i++) {
+            MappedField field = fields.get(i);
+            int index = i + 1;
+            if (field.type.nullable) {
+                java.append("        {\n");
+                java.append("            ").append(field.typeName).append(" value = ").append(field.getter).append(";\n");
+                java.append("            if (value != null) {\n");
+                java.append("                statement.").append(field.type.bindMethod).append("(").append(index).append(", ").append(String.format(field.type.bindValue, "value")).append(");\n");
+                java.append("            } else {\n");
+                java.append("                statement.bindNull(").append(index).append(");\n");
+                java.append("            }\n");
+                java.append("        }\n");
+            } else {
+                java.append("        statement.").append(field.type.bindMethod).append("(").append(index).append(", ").append(String.format(field.type.bindValue, field.getter)).append(");\n");
+            }
+        }
+        java.append("    }\n\n");
+
+        java.append("    @Override\n    public void readCursor(").append(entityName).append(" t, Cursor cursor, int[] indexes) {\n");
+        java.append("        if (indexes[0] >= 0) {\n            t.setPrimaryKey(cursor.getLong(indexes[0]));\n        }\n");
+        for (int i = 0; i < fields.size(); i++) {
+            MappedField field = fields.get(i);
+            String index = "indexes[" + (i + 1) + "]";
+            java.append("        if (").append(index).append(" >= 0) {\n");
+            java.append("            ").append(String.format(field.setter, String.format(field.type.readValue, index))).append(";\n");
+            java.append("        }\n");
+        }
+        java.append("    }\n}\n");
+
+        try {
+            JavaFileObject file = processingEnv.getFiler().createSourceFile(packageName.length() > 0 ? packageName + "." + mapperName : mapperName, type);
+            Writer writer = file.openWriter();
+            try {
+                writer.write(java.toString());
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "生成" + mapperName + "失败：" + e.getMessage(), type);
+        }
+    }
+
+    private void note(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE, message, element);
+    }
+
+    /**
+     * 与ClassInfo.conversionJavaFieldNameToDBFieldName保持一致
+     *
+     * @param fieldName
+     * @return
+     */
+    static String conversionJavaFieldNameToDBFieldName(String fieldName) {
+        char[] chars = fieldName.toCharArray();
+        StringBuilder sb = new StringBuilder();
+        for (char c : chars) {
+            if (Character.isUpperCase(c)) {
+                sb.append("_").append(Character.toLowerCase(c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static class FieldType {
+        /**
+         * 引用类型，值为NULL时不写入ContentValues
+         */
+        final boolean nullable;
+        /**
+         * 从Cursor读取的表达式，%s为字段位置
+         */
+        final String readValue;
+        /**
+         * 写入ContentValues的表达式，%s为字段值
+         */
+        final String putValue;
+        /**
+         * 绑定预编译语句使用的SQLiteStatement方法
+         */
+        final String bindMethod;
+        /**
+         * 绑定预编译语句的表达式，%s为字段值
+         */
+        final String bindValue;
+
+        FieldType(boolean nullable, String readValue, String bindMethod) {
+            this(nullable, readValue, "%s", bindMethod, "%s");
+        }
+
+        FieldType(boolean nullable, String readValue, String putValue, String bindMethod, String bindValue) {
+            this.nullable = nullable;
+            this.readValue = readValue;
+            this.putValue = putValue;
+            this.bindMethod = bindMethod;
+            this.bindValue = bindValue;
+        }
+    }
+
+    private static class MappedField {
+        String column;
+        String typeName;
+        FieldType type;
+        String getter;
+        String setter;
+    }
+}
@@ -0,0 +1,19 @@
+package com.sanders.db.sanders.com.library;
+
+import com.sanders.db.IDColumn;
+
+/**
+ * 游标分页测试使用的实体，score可以为NULL
+ * Created by sanders on 15/7/5.
+ */
+public class PageRow extends IDColumn {
+
+    private Integer score;
+
+    public PageRow() {
+    }
+
+    public PageRow(Integer score) {
+        this.score = score;
+    }
+}
@@ -0,0 +1,112 @@
+package com.sanders.db.sanders.com.library;
+
+import android.test.AndroidTestCase;
+
+import com.sanders.db.DBProxy;
+import com.sanders.db.Page;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * {@link DBProxy#queryPage(Class, String, String, boolean, int, String, String...)}在排序值重复和为NULL时逐页遍历
+ * Created by sanders on 15/7/5.
+ */
+public class QueryPageTest extends AndroidTestCase {
+
+    private static final String DB_NAME = "query_page_test.db";
+    private static final Integer[] SCORES = {3, null, 1, 3, null, 2, 3, 1, null, 2, 3, null, 5};
+
+    private DBProxy db;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(DB_NAME);
+        db = new DBProxy.DBBuilder().setDbName(DB_NAME).setDbVersion(1).createTable(PageRow.class).build(getContext());
+        List<PageRow> rows = new ArrayList<PageRow>();
+        for (Integer score : SCORES) {
+            rows.add(new PageRow(score));
+        }
+        db.insert(rows);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        db.shutdown();
+        getContext().deleteDatabase(DB_NAME);
+        super.tearDown();
+    }
+
+    public void testAscending() {
+        for (int pageSize = 1; pageSize <= SCORES.length + 1; pageSize++) {
+            assertEquals("pageSize=" + pageSize, expected("ASC"), walk("score", false, pageSize));
+        }
+    }
+
+    public void testDescending() {
+        for (int pageSize = 1; pageSize <= SCORES.length + 1; pageSize++) {
+            assertEquals("pageSize=" + pageSize, expected("DESC"), walk("score", true, pageSize));
+        }
+    }
+
+    public void testSelection() {
+        List<Long> expected = new ArrayList<Long>();
+        for (PageRow row : db.queryList(PageRow.class, "score IS NULL OR score > ?", new String[]{"1"}, null, null, "score DESC, _primary_key DESC", null)) {
+            expected.add(row.getPrimaryKey());
+        }
+        List<Long> keys = new ArrayList<Long>();
+        String token = null;
+        do {
+            Page<PageRow> page = db.queryPage(PageRow.class, "score IS NULL OR score > ?", "score", true, 2, token, "1");
+            for (PageRow row : page.getList()) {
+                keys.add(row.getPrimaryKey());
+            }
+            token = page.getNextToken();
+        } while (token != null);
+        assertEquals(expected, keys);
+    }
+
+    /**
+     * 按页查询全部行，检查每行只出现一次
+     *
+     * @param column
+     * @param descending
+     * @param pageSize
+     * @return 按页的顺序排列的主键
+     */
+    private List<Long> walk(String column, boolean descending, int pageSize) {
+        List<Long> keys = new ArrayList<Long>();
+        Set<Long> seen = new HashSet<Long>();
+        String token = null;
+        int pages = 0;
+        do {
+            Page<PageRow> page = db.queryPage(PageRow.class, null, column, descending, pageSize, token);
+            assertTrue(page.getList().size() <= pageSize);
+            for (PageRow row : page.getList()) {
+                assertTrue("重复的行：" + row.getPrimaryKey(), seen.add(row.getPrimaryKey()));
+                keys.add(row.getPrimaryKey());
+            }
+            token = page.getNextToken();
+            assertTrue("分页没有结束", ++pages <= SCORES.length + 1);
+        } while (token != null);
+        return keys;
+    }
+
+    /**
+     * 一次查询全部行的顺序，NULL升序时在最前面，降序时在最后面，相同值按主键排序
+     *
+     * @param direction
+     * @return
+     */
+    private List<Long> expected(String direction) {
+        List<Long> keys = new ArrayList<Long>();
+        for (PageRow row : db.queryList(PageRow.class, null, null, null, null, "score " + direction + ", _primary_key " + direction, null)) {
+            keys.add(row.getPrimaryKey());
+        }
+        assertEquals(SCORES.length, keys.size());
+        return keys;
+    }
+}
@@ -0,0 +1,186 @@
+package com.sanders.db.sanders.com.library;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import com.sanders.db.DBProxy;
+import com.sanders.db.OnDBUpgrade;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 升级时字段类型改变的重建表，以及BLOB字段改为{@link com.sanders.db.ExternalBlob}的迁移
+ * 版本1的表直接用SQL创建，再用版本2的实体类打开数据库触发升级
+ * Created by sanders on 15/7/5.
+ */
+public class RebuildTableTest extends AndroidTestCase {
+
+    private static final String DB_NAME = "rebuild_table_test.db";
+
+    private DBProxy db;
+    private final List<String> lossy = new ArrayList<String>();
+
+    private final OnDBUpgrade upgrade = new OnDBUpgrade() {
+        @Override
+        public boolean onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            //返回true时执行自动升级
+            return true;
+        }
+
+        @Override
+        public void onLossyConversion(String tableName, String column, long rows, String backupTable) {
+            lossy.add(tableName + "." + column + ":" + rows + ":" + backupTable);
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        clean();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (db != null) {
+            db.shutdown();
+        }
+        clean();
+        super.tearDown();
+    }
+
+    public void testTypeChange() {
+        createVersion1("CREATE TABLE `upgrade_amount` (`_primary_key` INTEGER NOT NULL PRIMARY KEY, `amount` TEXT, `name` TEXT)",
+                "INSERT INTO `upgrade_amount` VALUES (1, '1', 'a')",
+                "INSERT INTO `upgrade_amount` VALUES (2, '20', 'b')",
+                "INSERT INTO `upgrade_amount` VALUES (3, '-300', 'c')");
+        db = openVersion2(UpgradeAmount.class);
+        List<UpgradeAmount> list = db.queryList(UpgradeAmount.class, null, null, null, null, "_primary_key", null);
+        assertEquals(3, list.size());
+        assertEquals(1, list.get(0).getAmount());
+        assertEquals(20, list.get(1).getAmount());
+        assertEquals(-300, list.get(2).getAmount());
+        assertEquals("c", list.get(2).getName());
+        assertTrue(lossy.isEmpty());
+        assertFalse(tableExists("upgrade_amount_1"));
+        assertEquals("INTEGER", columnType("upgrade_amount", "amount"));
+    }
+
+    public void testLossyTypeChangeKeepsBackup() {
+        createVersion1("CREATE TABLE `upgrade_amount` (`_primary_key` INTEGER NOT NULL PRIMARY KEY, `amount` TEXT, `name` TEXT)",
+                "INSERT INTO `upgrade_amount` VALUES (1, '1', 'a')",
+                "INSERT INTO `upgrade_amount` VALUES (2, 'abc', 'b')");
+        db = openVersion2(UpgradeAmount.class);
+        assertEquals(2, db.queryCount(UpgradeAmount.class, null));
+        assertEquals(Arrays.asList("upgrade_amount.amount:1:upgrade_amount_1"), lossy);
+        assertTrue(tableExists("upgrade_amount_1"));
+        List<Map<String, Object>> backup = db.queryList("SELECT `amount` FROM `upgrade_amount_1` WHERE `_primary_key` = 2");
+        assertEquals("abc", backup.get(0).get("amount"));
+    }
+
+    public void testBlobToExternalBlob() throws IOException {
+        byte[] small = bytes(16);
+        //大于CursorWindow（约2MB），也不是分段大小的整数倍
+        byte[] large = bytes(3 * 1024 * 1024 + 123);
+        createVersion1("CREATE TABLE `upgrade_attachment` (`_primary_key` INTEGER NOT NULL PRIMARY KEY, `data` BLOB, `name` TEXT)");
+        SQLiteDatabase old = getContext().openOrCreateDatabase(DB_NAME, Context.MODE_PRIVATE, null);
+        try {
+            insertAttachment(old, 1, small, "small");
+            insertAttachment(old, 2, large, "large");
+            insertAttachment(old, 3, null, "empty");
+            insertAttachment(old, 4, small, "copy");
+        } finally {
+            old.close();
+        }
+        db = openVersion2(UpgradeAttachment.class);
+        List<UpgradeAttachment> list = db.queryList(UpgradeAttachment.class, null, null, null, null, "_primary_key", null);
+        assertEquals(4, list.size());
+        for (UpgradeAttachment attachment : list) {
+            //查询结果中@ExternalBlob字段为null
+            assertNull(attachment.getData());
+        }
+        assertTrue(Arrays.equals(small, db.readBlob(list.get(0), "data")));
+        assertTrue(Arrays.equals(large, db.readBlob(list.get(1), "data")));
+        assertNull(db.readBlob(list.get(2), "data"));
+        assertEquals(db.getBlobFile(list.get(0), "data"), db.getBlobFile(list.get(3), "data"));
+        assertEquals("TEXT", columnType("upgrade_attachment", "data"));
+        assertFalse(tableExists("upgrade_attachment_1"));
+        assertTrue(lossy.isEmpty());
+
+        assertEquals(0, db.gcBlobs());
+        db.delete(UpgradeAttachment.class, list.get(1).getPrimaryKey());
+        assertEquals(1, db.gcBlobs());
+        assertFalse(db.getBlobFile(list.get(1), "data").exists());
+        //相同内容的文件仍被另一行引用
+        db.delete(UpgradeAttachment.class, list.get(0).getPrimaryKey());
+        assertEquals(0, db.gcBlobs());
+        assertTrue(Arrays.equals(small, db.readBlob(list.get(3), "data")));
+    }
+
+    private void createVersion1(String... sqls) {
+        SQLiteDatabase old = getContext().openOrCreateDatabase(DB_NAME, Context.MODE_PRIVATE, null);
+        try {
+            for (String sql : sqls) {
+                old.execSQL(sql);
+            }
+            old.setVersion(1);
+        } finally {
+            old.close();
+        }
+    }
+
+    private DBProxy openVersion2(Class clazz) {
+        return new DBProxy.DBBuilder().setDbName(DB_NAME).setDbVersion(2).createTable(clazz).setOnDBUpgrade(upgrade).build(getContext());
+    }
+
+    private static void insertAttachment(SQLiteDatabase database, long key, byte[] data, String name) {
+        ContentValues values = new ContentValues();
+        values.put("_primary_key", key);
+        values.put("data", data);
+        values.put("name", name);
+        database.insertOrThrow("upgrade_attachment", null, values);
+    }
+
+    private boolean tableExists(String tableName) {
+        return !db.queryList("SELECT name FROM sqlite_master WHERE type = 'table' AND name = ?", tableName).isEmpty();
+    }
+
+    private String columnType(String tableName, String column) {
+        for (Map<String, Object> row : db.queryList("PRAGMA table_info(`" + tableName + "`)")) {
+            if (column.equals(row.get("name"))) {
+                return (String) row.get("type");
+            }
+        }
+        return null;
+    }
+
+    private static byte[] bytes(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + 7);
+        }
+        return data;
+    }
+
+    private void clean() {
+        File file = getContext().getDatabasePath(DB_NAME);
+        getContext().deleteDatabase(DB_NAME);
+        delete(new File(file.getPath() + "-blobs"));
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
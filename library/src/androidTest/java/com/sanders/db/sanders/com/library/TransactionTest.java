@@ -0,0 +1,127 @@
+package com.sanders.db.sanders.com.library;
+
+import android.test.AndroidTestCase;
+
+import com.sanders.db.DBProxy;
+import com.sanders.db.TransactionCallback;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 嵌套{@link DBProxy#runInTransaction(TransactionCallback)}的SAVEPOINT回滚
+ * Created by sanders on 15/7/5.
+ */
+public class TransactionTest extends AndroidTestCase {
+
+    private static final String DB_NAME = "transaction_test.db";
+
+    private DBProxy db;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(DB_NAME);
+        db = new DBProxy.DBBuilder().setDbName(DB_NAME).setDbVersion(1).createTable(TxItem.class).build(getContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        db.shutdown();
+        getContext().deleteDatabase(DB_NAME);
+        super.tearDown();
+    }
+
+    public void testInnerFailureRollsBackOnlyInner() {
+        TransactionCallback<Void> outer = new TransactionCallback<Void>() {
+            @Override
+            public Void doInTransaction(DBProxy db) {
+                db.insert(new TxItem("a"));
+                try {
+                    db.runInTransaction(new TransactionCallback<Void>() {
+                        @Override
+                        public Void doInTransaction(DBProxy db) {
+                            db.insert(new TxItem("b"));
+                            throw new RuntimeException("inner");
+                        }
+                    });
+                    fail("内层异常没有抛出");
+                } catch (RuntimeException e) {
+                    assertEquals("inner", e.getMessage());
+                }
+                db.insert(new TxItem("c"));
+                return null;
+            }
+        };
+        if (DBProxy.isNestedRollbackSupported()) {
+            db.runInTransaction(outer);
+            assertEquals(listOf("a", "c"), names());
+        } else {
+            try {
+                db.runInTransaction(outer);
+                fail("不支持SAVEPOINT回滚时外层应该抛出IllegalStateException");
+            } catch (IllegalStateException e) {
+                //整个事务已回滚
+            }
+            assertEquals(0, db.queryCount(TxItem.class, null));
+        }
+        assertFalse(db.inTransaction());
+    }
+
+    public void testInnerCommitRollsBackWithOuter() {
+        try {
+            db.runInTransaction(new TransactionCallback<Void>() {
+                @Override
+                public Void doInTransaction(DBProxy db) {
+                    db.insert(new TxItem("a"));
+                    db.runInTransaction(new TransactionCallback<Void>() {
+                        @Override
+                        public Void doInTransaction(DBProxy db) {
+                            db.insert(new TxItem("b"));
+                            return null;
+                        }
+                    });
+                    throw new RuntimeException("outer");
+                }
+            });
+            fail("外层异常没有抛出");
+        } catch (RuntimeException e) {
+            assertEquals("outer", e.getMessage());
+        }
+        assertEquals(0, db.queryCount(TxItem.class, null));
+    }
+
+    public void testNestedCommit() {
+        db.runInTransaction(new TransactionCallback<Void>() {
+            @Override
+            public Void doInTransaction(DBProxy db) {
+                db.insert(new TxItem("a"));
+                db.runInTransaction(new TransactionCallback<Void>() {
+                    @Override
+                    public Void doInTransaction(DBProxy db) {
+                        db.insert(new TxItem("b"));
+                        return null;
+                    }
+                });
+                return null;
+            }
+        });
+        assertEquals(listOf("a", "b"), names());
+    }
+
+    private List<String> names() {
+        List<String> names = new ArrayList<String>();
+        for (TxItem item : db.queryList(TxItem.class, null, null, null, null, "_primary_key", null)) {
+            names.add(item.getName());
+        }
+        return names;
+    }
+
+    private static List<String> listOf(String... names) {
+        List<String> list = new ArrayList<String>();
+        for (String name : names) {
+            list.add(name);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,23 @@
+package com.sanders.db.sanders.com.library;
+
+import com.sanders.db.IDColumn;
+
+/**
+ * 事务测试使用的实体
+ * Created by sanders on 15/7/5.
+ */
+public class TxItem extends IDColumn {
+
+    private String name;
+
+    public TxItem() {
+    }
+
+    public TxItem(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+}
@@ -0,0 +1,21 @@
+package com.sanders.db.sanders.com.library;
+
+import com.sanders.db.IDColumn;
+
+/**
+ * 重建表测试使用的实体，版本1中amount是TEXT字段，版本2改为INTEGER
+ * Created by sanders on 15/7/5.
+ */
+public class UpgradeAmount extends IDColumn {
+
+    private long amount;
+    private String name;
+
+    public long getAmount() {
+        return amount;
+    }
+
+    public String getName() {
+        return name;
+    }
+}
@@ -0,0 +1,23 @@
+package com.sanders.db.sanders.com.library;
+
+import com.sanders.db.ExternalBlob;
+import com.sanders.db.IDColumn;
+
+/**
+ * 重建表测试使用的实体，版本1中data保存在表中，版本2改为{@link ExternalBlob}
+ * Created by sanders on 15/7/5.
+ */
+public class UpgradeAttachment extends IDColumn {
+
+    @ExternalBlob
+    private byte[] data;
+    private String name;
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public String getName() {
+        return name;
+    }
+}
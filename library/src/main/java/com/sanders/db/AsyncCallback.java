@@ -0,0 +1,25 @@
+package com.sanders.db;
+
+/**
+ * AsyncDBProxy异步操作结果回调
+ * 提交操作的线程有Looper(如主线程)时在该线程回调，否则在执行操作的线程回调
+ * Created by sanders on 15/6/24.
+ *
+ * @param <R> 结果类型
+ */
+public interface AsyncCallback<R> {
+
+    /**
+     * 操作成功
+     *
+     * @param result
+     */
+    void onSuccess(R result);
+
+    /**
+     * 操作抛出异常
+     *
+     * @param e
+     */
+    void onFailure(Throwable e);
+}
@@ -0,0 +1,323 @@
+package com.sanders.db;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * DBProxy的异步版本
+ * 所有写操作按提交顺序在一个专用写线程中执行，查询分发到一个小的读线程池，调用线程不会被数据库操作阻塞
+ * 每个方法返回Future，也可以传入AsyncCallback接收结果，callback可以为null
+ * 配合{@link DBProxy.DBBuilder#setWriteAheadLogging(boolean)}使用时查询与写操作可以并行
+ * Created by sanders on 15/6/24.
+ */
+public class AsyncDBProxy {
+
+    /**
+     * 默认读线程数
+     */
+    private static final int DEFAULT_READ_THREADS = 2;
+
+    private final DBProxy proxy;
+    private final ExecutorService writeExecutor;
+    private final ExecutorService readExecutor;
+
+    public AsyncDBProxy(DBProxy proxy) {
+        this(proxy, DEFAULT_READ_THREADS);
+    }
+
+    /**
+     * @param proxy
+     * @param readThreads 读线程数
+     */
+    public AsyncDBProxy(DBProxy proxy, int readThreads) {
+        if (proxy == null) {
+            throw new NullPointerException("DBProxy不能为NULL！");
+        }
+        if (readThreads < 1) {
+            throw new IllegalArgumentException("readThreads必须大于0！");
+        }
+        this.proxy = proxy;
+        this.writeExecutor = Executors.newSingleThreadExecutor(new DBThreadFactory("DBProxy-writer"));
+        this.readExecutor = Executors.newFixedThreadPool(readThreads, new DBThreadFactory("DBProxy-reader"));
+    }
+
+    public DBProxy getDBProxy() {
+        return proxy;
+    }
+
+    public <T extends IDColumn> Future<Long> insert(final T t, AsyncCallback<Long> callback) {
+        return write(new Callable<Long>() {
+            @Override
+            public Long call() {
+                return proxy.insert(t);
+            }
+        }, callback);
+    }
+
+    public <T extends IDColumn> Future<Void> insert(final List<T> list, AsyncCallback<Void> callback) {
+        return write(new Callable<Void>() {
+            @Override
+            public Void call() {
+                proxy.insert(list);
+                return null;
+            }
+        }, callback);
+    }
+
+    public <T extends IDColumn> Future<Integer> update(final T t, AsyncCallback<Integer> callback) {
+        return write(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return proxy.update(t);
+            }
+        }, callback);
+    }
+
+    public <T extends IDColumn> Future<Void> update(final List<T> list, AsyncCallback<Void> callback) {
+        return write(new Callable<Void>() {
+            @Override
+            public Void call() {
+                proxy.update(list);
+                return null;
+            }
+        }, callback);
+    }
+
+    public <T extends IDColumn> Future<Long> insertOrUpdate(final T t, AsyncCallback<Long> callback) {
+        return write(new Callable<Long>() {
+            @Override
+            public Long call() {
+                return proxy.insertOrUpdate(t);
+            }
+        }, callback);
+    }
+
+    public <T extends IDColumn> Future<Void> insertOrUpdate(final List<T> list, AsyncCallback<Void> callback) {
+        return write(new Callable<Void>() {
+            @Override
+            public Void call() {
+                proxy.insertOrUpdate(list);
+                return null;
+            }
+        }, callback);
+    }
+
+    public Future<Integer> delete(final Class<?> clazz, AsyncCallback<Integer> callback, final String where, final String... args) {
+        return write(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return proxy.delete(clazz, where, args);
+            }
+        }, callback);
+    }
+
+    public Future<Integer> delete(final Class<?> clazz, final long keyId, AsyncCallback<Integer> callback) {
+        return write(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return proxy.delete(clazz, keyId);
+            }
+        }, callback);
+    }
+
+    public Future<Void> execSQL(AsyncCallback<Void> callback, final String... sql) {
+        return write(new Callable<Void>() {
+            @Override
+            public Void call() {
+                proxy.execSQL(sql);
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * 在写线程中执行{@link DBProxy#runInTransaction(TransactionCallback)}
+     *
+     * @param transaction
+     * @param callback
+     * @param <R>
+     * @return
+     */
+    public <R> Future<R> runInTransaction(final TransactionCallback<R> transaction, AsyncCallback<R> callback) {
+        return write(new Callable<R>() {
+            @Override
+            public R call() {
+                return proxy.runInTransaction(transaction);
+            }
+        }, callback);
+    }
+
+    public <T extends IDColumn> Future<T> query(final Class<T> clazz, final long keyId, AsyncCallback<T> callback) {
+        return read(new Callable<T>() {
+            @Override
+            public T call() {
+                return proxy.query(clazz, keyId);
+            }
+        }, callback);
+    }
+
+    public <T extends IDColumn> Future<T> query(final Class<T> clazz, AsyncCallback<T> callback, final String where, final String... args) {
+        return read(new Callable<T>() {
+            @Override
+            public T call() {
+                return proxy.query(clazz, where, args);
+            }
+        }, callback);
+    }
+
+    public <T extends IDColumn> Future<List<T>> queryList(final Class<T> clazz, AsyncCallback<List<T>> callback, final String selection, final String... selectionArgs) {
+        return read(new Callable<List<T>>() {
+            @Override
+            public List<T> call() {
+                return proxy.queryList(clazz, selection, selectionArgs);
+            }
+        }, callback);
+    }
+
+    public <T extends IDColumn> Future<List<T>> queryList(final Class<T> clazz, final String selection, final int pageNumber, final int pageSize, AsyncCallback<List<T>> callback, final String... selectionArgs) {
+        return read(new Callable<List<T>>() {
+            @Override
+            public List<T> call() {
+                return proxy.queryList(clazz, selection, pageNumber, pageSize, selectionArgs);
+            }
+        }, callback);
+    }
+
+    public <T extends IDColumn> Future<List<T>> querySqlList(final Class<T> clazz, AsyncCallback<List<T>> callback, final String sql, final String... args) {
+        return read(new Callable<List<T>>() {
+            @Override
+            public List<T> call() {
+                return proxy.querySqlList(clazz, sql, args);
+            }
+        }, callback);
+    }
+
+    public <T extends IDColumn> Future<Long> queryCount(final Class<T> clazz, AsyncCallback<Long> callback, final String where, final String... args) {
+        return read(new Callable<Long>() {
+            @Override
+            public Long call() {
+                return proxy.queryCount(clazz, where, args);
+            }
+        }, callback);
+    }
+
+    public Future<List<Map<String, Object>>> queryList(AsyncCallback<List<Map<String, Object>>> callback, final String sql, final String... args) {
+        return read(new Callable<List<Map<String, Object>>>() {
+            @Override
+            public List<Map<String, Object>> call() {
+                return proxy.queryList(sql, args);
+            }
+        }, callback);
+    }
+
+    /**
+     * 在写线程中执行任意写操作，与其它写操作按提交顺序串行
+     *
+     * @param task
+     * @param callback
+     * @param <R>
+     * @return
+     */
+    public <R> Future<R> write(Callable<R> task, AsyncCallback<R> callback) {
+        return submit(writeExecutor, task, callback);
+    }
+
+    /**
+     * 在读线程池中执行任意查询，不能在此执行写操作
+     *
+     * @param task
+     * @param callback
+     * @param <R>
+     * @return
+     */
+    public <R> Future<R> read(Callable<R> task, AsyncCallback<R> callback) {
+        return submit(readExecutor, task, callback);
+    }
+
+    /**
+     * 不再接收新操作，已提交的操作执行完后关闭DBProxy，不阻塞调用线程
+     */
+    public void shutdown() {
+        readExecutor.shutdown();
+        writeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    readExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                proxy.shutdown();
+            }
+        });
+        writeExecutor.shutdown();
+    }
+
+    private <R> Future<R> submit(ExecutorService executor, final Callable<R> task, final AsyncCallback<R> callback) {
+        final Handler handler = callback != null && Looper.myLooper() != null ? new Handler() : null;
+        return executor.submit(new Callable<R>() {
+            @Override
+            public R call() throws Exception {
+                R result;
+                try {
+                    result = task.call();
+                } catch (Exception e) {
+                    deliver(handler, callback, null, e);
+                    throw e;
+                } catch (Error e) {
+                    deliver(handler, callback, null, e);
+                    throw e;
+                }
+                deliver(handler, callback, result, null);
+                return result;
+            }
+        });
+    }
+
+    private <R> void deliver(Handler handler, final AsyncCallback<R> callback, final R result, final Throwable e) {
+        if (callback == null) {
+            return;
+        }
+        Runnable runnable = new Runnable() {
+            @Override
+            public void run() {
+                if (e == null) {
+                    callback.onSuccess(result);
+                } else {
+                    callback.onFailure(e);
+                }
+            }
+        };
+        if (handler != null) {
+            handler.post(runnable);
+        } else {
+            runnable.run();
+        }
+    }
+
+    private static class DBThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        DBThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.sanders.db;
+
+import android.database.Cursor;
+
+/**
+ * 结果集字段到实体字段的绑定计划
+ * 只与结果集的字段布局有关，由ClassInfo按字段布局缓存，逐行读取时不再做字段名查找
+ * Created by sanders on 15/6/21.
+ */
+final class BindingPlan {
+
+    /**
+     * 需要读取的Cursor字段位置，与codecs一一对应
+     */
+    final int[] columnIndexes;
+
+    /**
+     * 需要读取的字段转换器
+     */
+    final FieldCodec[] codecs;
+
+    /**
+     * 编译期生成映射器使用的字段位置，没有映射器时为null
+     */
+    final int[] mapperIndexes;
+
+    BindingPlan(int[] columnIndexes, FieldCodec[] codecs, int[] mapperIndexes) {
+        this.columnIndexes = columnIndexes;
+        this.codecs = codecs;
+        this.mapperIndexes = mapperIndexes;
+    }
+
+    /**
+     * 读取Cursor当前行到实体
+     *
+     * @param t
+     * @param cursor
+     * @throws IllegalAccessException
+     */
+    void read(Object t, Cursor cursor) throws IllegalAccessException {
+        for (int i = 0; i < codecs.length; i++) {
+            codecs[i].read(t, cursor, columnIndexes[i]);
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package com.sanders.db;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * {@link ExternalBlob}字段的文件存储，按内容的SHA-1保存，文件路径为 目录/前两位/SHA-1
+ * 目录默认是数据库文件路径加"-blobs"
+ * 文件在SQL语句绑定参数时写入，写事务中新建的文件在事务回滚时删除；已存在的文件可能被已提交的记录引用，不删除
+ * 删除记录或替换内容后不再引用的文件由{@link DBProxy#gcBlobs(Class[])}统一删除
+ * Created by sanders on 15/7/4.
+ */
+final class BlobStore {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final DBProxy proxy;
+    private File dir;
+    /**
+     * 当前写事务中新建的文件，不在写事务中时为null
+     */
+    private List<File> created;
+
+    /**
+     * @param proxy
+     * @param dir   为null时第一次使用时根据数据库文件路径确定
+     */
+    BlobStore(DBProxy proxy, File dir) {
+        this.proxy = proxy;
+        this.dir = dir;
+    }
+
+    static File getDefaultDir(File databaseFile) {
+        return new File(databaseFile.getPath() + "-blobs");
+    }
+
+    /**
+     * 数据库升级时不能再通过DBProxy租用数据库，直接使用正在升级的数据库确定目录
+     *
+     * @param database
+     */
+    synchronized void resolveDir(SQLiteDatabase database) {
+        if (dir == null) {
+            dir = getDefaultDir(new File(database.getPath()));
+        }
+    }
+
+    private synchronized File getDir() {
+        if (dir == null) {
+            SQLiteDatabase database = proxy.getDatabase();
+            try {
+                dir = getDefaultDir(new File(database.getPath()));
+            } finally {
+                proxy.close(database);
+            }
+        }
+        return dir;
+    }
+
+    /**
+     * 引用对应的文件
+     *
+     * @param ref
+     * @return
+     * @throws IllegalArgumentException 不是SHA-1
+     */
+    File getFile(String ref) {
+        if (ref.length() != 40) {
+            throw new IllegalArgumentException("无效的BLOB引用：" + ref);
+        }
+        for (int i = 0; i < ref.length(); i++) {
+            char c = ref.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                throw new IllegalArgumentException("无效的BLOB引用：" + ref);
+            }
+        }
+        return new File(new File(getDir(), ref.substring(0, 2)), ref);
+    }
+
+    /**
+     * 保存内容，相同内容的文件已存在时不再写入
+     * 先写临时文件再改名，中途失败不会留下不完整的文件
+     *
+     * @param data
+     * @return 内容的SHA-1
+     * @throws IOException
+     */
+    String write(byte[] data) throws IOException {
+        String ref = hex(newDigest().digest(data));
+        File file = getFile(ref);
+        if (file.exists()) {
+            return ref;
+        }
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("无法创建目录：" + parent);
+        }
+        File temp = File.createTempFile(ref, ".tmp", parent);
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(data);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        return moveTo(temp, file, ref);
+    }
+
+    /**
+     * 分段写入内容，内容太大不能一次读入内存时使用
+     * 必须调用{@link Writer#commit()}或{@link Writer#abort()}
+     *
+     * @return
+     * @throws IOException
+     */
+    Writer newWriter() throws IOException {
+        File dir = getDir();
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("无法创建目录：" + dir);
+        }
+        return new Writer(File.createTempFile("blob", ".tmp", dir));
+    }
+
+    /**
+     * 临时文件改名为引用对应的文件，相同内容的文件已存在时删除临时文件
+     *
+     * @param temp
+     * @param file
+     * @param ref
+     * @return
+     * @throws IOException
+     */
+    private String moveTo(File temp, File file, String ref) throws IOException {
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            if (!file.exists()) {
+                throw new IOException("无法写入文件：" + file);
+            }
+            return ref;
+        }
+        synchronized (this) {
+            if (created != null) {
+                created.add(file);
+            }
+        }
+        return ref;
+    }
+
+    /**
+     * 删除refs之外的文件和遗留的临时文件，必须在没有写入进行时调用
+     *
+     * @param refs 仍被引用的SHA-1
+     * @return 删除的文件数量
+     */
+    int sweep(Set<String> refs) {
+        File[] children = getDir().listFiles();
+        if (children == null) {
+            return 0;
+        }
+        int count = 0;
+        for (File child : children) {
+            if (child.isDirectory()) {
+                File[] files = child.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        if (!refs.contains(file.getName()) && file.delete()) {
+                            count++;
+                        }
+                    }
+                }
+                //目录不为空时删除失败
+                child.delete();
+            } else if (child.getName().endsWith(".tmp") && child.delete()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 最外层写事务开始
+     */
+    synchronized void beginWrite() {
+        created = new ArrayList<File>();
+    }
+
+    /**
+     * @return 当前写事务中已新建的文件数量，用于只回滚SAVEPOINT之后的文件
+     */
+    synchronized int mark() {
+        return created == null ? 0 : created.size();
+    }
+
+    /**
+     * 删除mark之后新建的文件
+     *
+     * @param mark
+     */
+    synchronized void rollback(int mark) {
+        if (created == null) {
+            return;
+        }
+        List<File> files = created.subList(mark, created.size());
+        for (File file : files) {
+            file.delete();
+        }
+        files.clear();
+    }
+
+    /**
+     * 最外层写事务结束
+     *
+     * @param committed 是否已提交，没有提交时删除本次事务新建的文件
+     */
+    synchronized void endWrite(boolean committed) {
+        if (!committed) {
+            rollback(0);
+        }
+        created = null;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] digest) {
+        char[] chars = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            chars[i * 2] = HEX[(digest[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[digest[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * 分段写入的临时文件，边写边计算SHA-1，提交时改名为引用对应的文件
+     */
+    final class Writer {
+
+        private final File temp;
+        private final FileOutputStream out;
+        private final MessageDigest digest = newDigest();
+
+        private Writer(File temp) throws IOException {
+            this.temp = temp;
+            this.out = new FileOutputStream(temp);
+        }
+
+        void write(byte[] data) throws IOException {
+            out.write(data);
+            digest.update(data);
+        }
+
+        /**
+         * @return 内容的SHA-1
+         * @throws IOException
+         */
+        String commit() throws IOException {
+            try {
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            String ref = hex(digest.digest());
+            File file = getFile(ref);
+            if (file.exists()) {
+                //已存在的文件可能被已提交的记录引用，不能覆盖后记录为本次事务新建
+                temp.delete();
+                return ref;
+            }
+            File parent = file.getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+                temp.delete();
+                throw new IOException("无法创建目录：" + parent);
+            }
+            return moveTo(temp, file, ref);
+        }
+
+        /**
+         * 放弃写入，删除临时文件
+         */
+        void abort() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            temp.delete();
+        }
+    }
+}
@@ -2,22 +2,78 @@ package com.sanders.db;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
 
 import java.lang.reflect.Field;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Created by sanders on 15/4/4.
  */
 public class ClassInfo<T extends IDColumn> {
 
+    /**
+     * 每个实体类最多缓存的结果集字段布局数量
+     */
+    private static final int MAX_BINDING_PLANS = 32;
+
+    /**
+     * 每个实体类最多缓存的部分字段更新语句数量
+     */
+    private static final int MAX_PARTIAL_UPDATE_SQLS = 64;
+
     private Class<T> clazz;
     private String tableName;
     private Map<String, Field> fieldMap = new LinkedHashMap<String, Field>();
+    /**
+     * 编译期生成的映射器，没有生成时为null并使用反射
+     */
+    private EntityMapper<T> mapper;
+    /**
+     * 字段转换器，顺序与fieldMap一致，第一个是主键
+     */
+    private FieldCodec[] codecs = new FieldCodec[0];
+    private Map<String, FieldCodec> codecMap = new HashMap<String, FieldCodec>();
+    /**
+     * 按结果集字段布局缓存的绑定计划
+     */
+    private final ConcurrentMap<List<String>, BindingPlan> bindingPlans = new ConcurrentHashMap<List<String>, BindingPlan>();
+    /**
+     * 预编译插入和更新语句绑定的字段，不包含主键
+     */
+    private FieldCodec[] writeCodecs = new FieldCodec[0];
+    private String insertSql;
+    private String updateSql;
+    /**
+     * {@link Index}声明的索引
+     */
+    private List<IndexInfo> indexes = new ArrayList<IndexInfo>();
+    /**
+     * 第一个唯一索引的字段，没有唯一索引时为null
+     */
+    private FieldCodec[] uniqueKey;
+    /**
+     * 是否开启修改跟踪
+     */
+    private boolean dirtyTracking;
+    /**
+     * 按修改字段集合缓存的更新语句
+     */
+    private final ConcurrentMap<BitSet, String> partialUpdateSqls = new ConcurrentHashMap<BitSet, String>();
+    /**
+     * 是否有{@link ExternalBlob}字段
+     */
+    private boolean externalBlobs;
 
     public ClassInfo(Class<T> clazz) {
         this.setClazz(clazz);
@@ -34,6 +90,7 @@ public class ClassInfo<T extends IDColumn> {
             Field[] fields = clazz.getDeclaredFields();
             for (Field field : fields) {
                 int modifiers = field.getModifiers();
+                //只跳过public/private/protected static final，EntityMapperProcessor.isConstant使用相同规则
                 if (modifiers == 25 || modifiers == 26 || modifiers == 28) {
                     continue;
                 }
@@ -43,6 +100,156 @@ public class ClassInfo<T extends IDColumn> {
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         }
+        this.codecs = new FieldCodec[fieldMap.size()];
+        this.codecMap.clear();
+        this.externalBlobs = false;
+        int i = 0;
+        for (Map.Entry<String, Field> entry : fieldMap.entrySet()) {
+            FieldCodec codec = FieldCodec.of(entry.getValue(), entry.getKey());
+            codecs[i++] = codec;
+            codecMap.put(codec.column, codec);
+            externalBlobs |= codec instanceof FieldCodec.ExternalBlobCodec;
+        }
+        //映射器直接读写byte[]，有外部存储字段时使用反射
+        this.mapper = externalBlobs ? null : findMapper(clazz);
+        this.bindingPlans.clear();
+        this.writeCodecs = createWriteCodecs();
+        this.insertSql = createInsertSql();
+        this.updateSql = createUpdateSql(null);
+        this.partialUpdateSqls.clear();
+        this.indexes = createIndexes();
+        this.uniqueKey = createUniqueKey();
+    }
+
+    /**
+     * 解析字段和实体类上的{@link Index}
+     *
+     * @return
+     * @throws IllegalArgumentException 索引字段不是本表字段
+     */
+    private List<IndexInfo> createIndexes() {
+        List<IndexInfo> list = new ArrayList<IndexInfo>();
+        for (int i = 1; i < codecs.length; i++) {
+            Index index = codecs[i].field.getAnnotation(Index.class);
+            if (index != null) {
+                list.add(new IndexInfo(tableName, index.name(), new String[]{codecs[i].column}, index.unique()));
+            }
+        }
+        Index classIndex = clazz.getAnnotation(Index.class);
+        if (classIndex != null) {
+            list.add(createIndex(classIndex));
+        }
+        Indexes classIndexes = clazz.getAnnotation(Indexes.class);
+        if (classIndexes != null) {
+            for (Index index : classIndexes.value()) {
+                list.add(createIndex(index));
+            }
+        }
+        return list;
+    }
+
+    private IndexInfo createIndex(Index index) {
+        String[] names = index.columns();
+        if (names.length == 0) {
+            throw new IllegalArgumentException(clazz.getName() + "的@Index缺少columns！");
+        }
+        String[] columns = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+            columns[i] = getColumnName(names[i]);
+            if (columns[i] == null) {
+                throw new IllegalArgumentException(names[i] + "不是" + tableName + "的字段！");
+            }
+        }
+        return new IndexInfo(tableName, index.name(), columns, index.unique());
+    }
+
+    /**
+     * 预编译语句绑定的字段，有映射器时按映射器的字段顺序，否则按fieldMap顺序
+     *
+     * @return
+     */
+    private FieldCodec[] createWriteCodecs() {
+        List<FieldCodec> list = new ArrayList<FieldCodec>();
+        if (mapper != null) {
+            String[] columns = mapper.getColumnNames();
+            for (int i = 1; i < columns.length; i++) {
+                list.add(codecMap.get(columns[i]));
+            }
+        } else {
+            for (int i = 1; i < codecs.length; i++) {
+                if (codecs[i].isWritable()) {
+                    list.add(codecs[i]);
+                }
+            }
+        }
+        return list.toArray(new FieldCodec[list.size()]);
+    }
+
+    private String createInsertSql() {
+        if (writeCodecs.length == 0) {
+            return "INSERT INTO `" + tableName + "` DEFAULT VALUES";
+        }
+        StringBuilder sql = new StringBuilder("INSERT INTO `").append(tableName).append("` (");
+        StringBuilder values = new StringBuilder();
+        for (int i = 0; i < writeCodecs.length; i++) {
+            if (i > 0) {
+                sql.append(", ");
+                values.append(", ");
+            }
+            sql.append('`').append(writeCodecs[i].column).append('`');
+            values.append('?');
+        }
+        return sql.append(") VALUES (").append(values).append(")").toString();
+    }
+
+    /**
+     * 更新语句与ContentValues方式保持一致：引用类型字段为NULL时不修改数据库原值
+     *
+     * @return
+     */
+    private String createUpdateSql(BitSet changed) {
+        StringBuilder sql = new StringBuilder("UPDATE `").append(tableName).append("` SET ");
+        boolean first = true;
+        for (int i = 0; i < writeCodecs.length; i++) {
+            if (changed != null && !changed.get(i)) {
+                continue;
+            }
+            FieldCodec codec = writeCodecs[i];
+            if (!first) {
+                sql.append(", ");
+            }
+            first = false;
+            sql.append('`').append(codec.column).append("` = ");
+            if (codec.isNullable()) {
+                sql.append("COALESCE(?, `").append(codec.column).append("`)");
+            } else {
+                sql.append('?');
+            }
+        }
+        if (first) {
+            sql.append('`').append(IDColumn.PRIMARY_KEY).append("` = `").append(IDColumn.PRIMARY_KEY).append('`');
+        }
+        return sql.append(" WHERE `").append(IDColumn.PRIMARY_KEY).append("` = ?").toString();
+    }
+
+    /**
+     * 查找实体类对应的编译期生成映射器
+     *
+     * @param clazz
+     * @param <T>
+     * @return 没有生成映射器返回null
+     */
+    @SuppressWarnings("unchecked")
+    private static <T extends IDColumn> EntityMapper<T> findMapper(Class<T> clazz) {
+        try {
+            Class<?> mapperClass = Class.forName(clazz.getName() + EntityMapper.MAPPER_SUFFIX, true, clazz.getClassLoader());
+            return (EntityMapper<T>) mapperClass.newInstance();
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
     }
 
     public String getTableName() {
@@ -53,41 +260,340 @@ public class ClassInfo<T extends IDColumn> {
         return fieldMap;
     }
 
+    /**
+     * 数据库字段的转换器
+     *
+     * @param column
+     * @return 不是本表字段时返回null
+     */
+    FieldCodec getCodec(String column) {
+        return codecMap.get(column);
+    }
+
+    /**
+     * 数据库字段名或者Java字段名转换为数据库字段名
+     *
+     * @param name
+     * @return 不是本表字段时返回null
+     */
+    String getColumnName(String name) {
+        if (codecMap.containsKey(name)) {
+            return name;
+        }
+        String column = conversionJavaFieldNameToDBFieldName(name);
+        return codecMap.containsKey(column) ? column : null;
+    }
+
+    /**
+     * 校验并转换查询的字段，主键放在第一个并去掉重复字段
+     *
+     * @param names 数据库字段名或者Java字段名
+     * @return names为null时返回null，表示查询全部字段
+     * @throws IllegalArgumentException 不是本表字段
+     */
+    String[] getProjection(String[] names) {
+        if (names == null) {
+            return null;
+        }
+        Set<String> columns = new LinkedHashSet<String>();
+        columns.add(IDColumn.PRIMARY_KEY);
+        for (String name : names) {
+            String column = getColumnName(name);
+            if (column == null) {
+                throw new IllegalArgumentException(name + "不是" + tableName + "的字段！");
+            }
+            columns.add(column);
+        }
+        return columns.toArray(new String[columns.size()]);
+    }
+
+    /**
+     * {@link Index}声明的索引
+     *
+     * @return
+     */
+    List<IndexInfo> getIndexes() {
+        return indexes;
+    }
+
+    /**
+     * 第一个唯一索引的字段，作为insertOrUpdate去重的业务主键
+     *
+     * @return 没有唯一索引时返回null
+     */
+    FieldCodec[] getUniqueKey() {
+        return uniqueKey;
+    }
+
+    private FieldCodec[] createUniqueKey() {
+        for (IndexInfo index : indexes) {
+            if (index.unique) {
+                return getCodecs(index.columns);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param names 数据库字段名或者Java字段名
+     * @return
+     * @throws IllegalArgumentException 不是本表字段
+     */
+    FieldCodec[] getCodecs(String... names) {
+        FieldCodec[] keyCodecs = new FieldCodec[names.length];
+        for (int i = 0; i < names.length; i++) {
+            String column = getColumnName(names[i]);
+            if (column == null) {
+                throw new IllegalArgumentException(names[i] + "不是" + tableName + "的字段！");
+            }
+            keyCodecs[i] = codecMap.get(column);
+        }
+        return keyCodecs;
+    }
+
+    /**
+     * 根据业务主键查询主键的SQL，参数顺序与keyCodecs一致
+     *
+     * @param keyCodecs
+     * @return
+     */
+    String getKeyLookupSql(FieldCodec[] keyCodecs) {
+        StringBuilder sql = new StringBuilder("SELECT `").append(IDColumn.PRIMARY_KEY).append("` FROM `").append(tableName).append("` WHERE ");
+        for (int i = 0; i < keyCodecs.length; i++) {
+            if (i > 0) {
+                sql.append(" AND ");
+            }
+            sql.append('`').append(keyCodecs[i].column).append("` = ?");
+        }
+        return sql.append(" LIMIT 1").toString();
+    }
+
+    public EntityMapper<T> getMapper() {
+        return mapper;
+    }
+
     public ContentValues getContentValues(T t) {
         ContentValues values = new ContentValues();
-        for (Map.Entry<String, Field> entry : fieldMap.entrySet()) {
-            try {
-                String key = entry.getKey();
-                if (IDColumn.PRIMARY_KEY.equals(key)) {
-                    continue;
-                }
-                putFieldValue(key, entry.getValue(), t, values);
-            } catch (IllegalAccessException e) {
-                e.printStackTrace();
-                return null;
+        if (mapper != null) {
+            mapper.putValues(t, values);
+            return values;
+        }
+        try {
+            for (int i = 1; i < codecs.length; i++) {
+                codecs[i].put(t, values);
             }
+        } catch (IllegalAccessException e) {
+            e.printStackTrace();
+            return null;
         }
         return values;
     }
 
+    /**
+     * 预编译插入语句
+     *
+     * @return
+     */
+    public String getInsertSql() {
+        return insertSql;
+    }
+
+    /**
+     * 根据主键更新的预编译语句
+     *
+     * @return
+     */
+    public String getUpdateSql() {
+        return updateSql;
+    }
+
+    /**
+     * 绑定插入语句参数
+     *
+     * @param statement
+     * @param t
+     * @return 字段无法访问时返回false
+     */
+    public boolean bindInsert(SQLiteStatement statement, T t) {
+        if (mapper != null) {
+            mapper.bindValues(t, statement);
+            return true;
+        }
+        try {
+            for (int i = 0; i < writeCodecs.length; i++) {
+                writeCodecs[i].bind(statement, i + 1, t);
+            }
+        } catch (IllegalAccessException e) {
+            e.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 绑定根据主键更新语句参数
+     *
+     * @param statement
+     * @param t
+     * @param keyId
+     * @return 字段无法访问时返回false
+     */
+    public boolean bindUpdate(SQLiteStatement statement, T t, long keyId) {
+        if (!bindInsert(statement, t)) {
+            return false;
+        }
+        statement.bindLong(writeCodecs.length + 1, keyId);
+        return true;
+    }
+
+    boolean hasExternalBlobs() {
+        return externalBlobs;
+    }
+
+    /**
+     * 设置{@link ExternalBlob}字段的文件存储
+     *
+     * @param store
+     */
+    void setBlobStore(BlobStore store) {
+        for (FieldCodec codec : codecs) {
+            if (codec instanceof FieldCodec.ExternalBlobCodec) {
+                ((FieldCodec.ExternalBlobCodec) codec).setStore(store);
+            }
+        }
+    }
+
+    void setDirtyTracking(boolean dirtyTracking) {
+        this.dirtyTracking = dirtyTracking;
+    }
+
+    boolean isDirtyTracking() {
+        return dirtyTracking;
+    }
+
+    /**
+     * 开启修改跟踪时保存实体当前的字段值
+     *
+     * @param t
+     */
+    void takeSnapshot(T t) {
+        if (dirtyTracking) {
+            setSnapshot(t, createSnapshot(t), t.getPrimaryKey());
+        }
+    }
+
+    static void setSnapshot(IDColumn t, Object[] snapshot, long keyId) {
+        EntityState state = t.getState(true);
+        state.snapshot = snapshot;
+        state.snapshotKey = keyId;
+    }
+
+    /**
+     * 复制实体当前的字段值，写事务中由DBProxy在提交后再设置到实体
+     *
+     * @param t
+     * @return 字段无法访问时返回null
+     */
+    Object[] createSnapshot(T t) {
+        Object[] snapshot = new Object[writeCodecs.length];
+        try {
+            for (int i = 0; i < writeCodecs.length; i++) {
+                snapshot[i] = writeCodecs[i].snapshot(t);
+            }
+        } catch (IllegalAccessException e) {
+            e.printStackTrace();
+            return null;
+        }
+        return snapshot;
+    }
+
+    /**
+     * 与上次保存的字段值相比修改过的字段，位置与{@link #getUpdateSql()}中的字段顺序一致
+     *
+     * @param t
+     * @param keyId
+     * @return 没有保存过字段值或者主键不同时返回null，表示更新全部字段
+     */
+    BitSet getChangedColumns(T t, long keyId) {
+        EntityState state = t.getState(false);
+        Object[] snapshot = state == null ? null : state.snapshot;
+        if (!dirtyTracking || snapshot == null || state.snapshotKey != keyId) {
+            return null;
+        }
+        BitSet changed = new BitSet(writeCodecs.length);
+        try {
+            for (int i = 0; i < writeCodecs.length; i++) {
+                if (writeCodecs[i].isChanged(t, snapshot[i])) {
+                    changed.set(i);
+                }
+            }
+        } catch (IllegalAccessException e) {
+            e.printStackTrace();
+            return null;
+        }
+        return changed;
+    }
+
+    /**
+     * 只更新changed字段的SQL，按字段集合缓存
+     *
+     * @param changed
+     * @return
+     */
+    String getUpdateSql(BitSet changed) {
+        String sql = partialUpdateSqls.get(changed);
+        if (sql == null) {
+            if (partialUpdateSqls.size() >= MAX_PARTIAL_UPDATE_SQLS) {
+                partialUpdateSqls.clear();
+            }
+            sql = createUpdateSql(changed);
+            partialUpdateSqls.put((BitSet) changed.clone(), sql);
+        }
+        return sql;
+    }
+
+    /**
+     * 绑定只更新changed字段的语句
+     *
+     * @param statement
+     * @param t
+     * @param keyId
+     * @param changed
+     * @return
+     */
+    boolean bindUpdate(SQLiteStatement statement, T t, long keyId, BitSet changed) {
+        int index = 1;
+        try {
+            for (int i = changed.nextSetBit(0); i >= 0; i = changed.nextSetBit(i + 1)) {
+                writeCodecs[i].bind(statement, index++, t);
+            }
+        } catch (IllegalAccessException e) {
+            e.printStackTrace();
+            return false;
+        }
+        statement.bindLong(index, keyId);
+        return true;
+    }
+
+    /**
+     * 修改跟踪时按字段集合过滤ContentValues
+     *
+     * @param values
+     * @param changed
+     */
+    void retainChanged(ContentValues values, BitSet changed) {
+        for (int i = 0; i < writeCodecs.length; i++) {
+            if (!changed.get(i)) {
+                values.remove(writeCodecs[i].column);
+            }
+        }
+    }
+
     public T getInstanceObject(Cursor cursor) {
+        BindingPlan plan = getBindingPlan(cursor);
         try {
-            String[] columnNames = cursor.getColumnNames();
             if (cursor.moveToNext()) {
-                T t = clazz.newInstance();
-                for (String columnName : columnNames) {
-                    int index = cursor.getColumnIndex(columnName);
-                    Field field;
-                    if (IDColumn.PRIMARY_KEY.equals(columnName)) {
-                        field = fieldMap.get(IDColumn.PRIMARY_KEY);
-                    } else {
-                        field = fieldMap.get(columnName);
-                    }
-                    if (field != null) {
-                        setFieldValue(t, field, cursor, index);
-                    }
-                }
-                return t;
+                return readRow(cursor, plan);
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -97,23 +603,10 @@ public class ClassInfo<T extends IDColumn> {
 
     public List<T> getInstanceList(Cursor cursor) {
         List<T> list = new ArrayList<T>();
-        String[] columnNames = cursor.getColumnNames();
+        BindingPlan plan = getBindingPlan(cursor);
         while (cursor.moveToNext()) {
             try {
-                T t = clazz.newInstance();
-                for (String columnName : columnNames) {
-                    int index = cursor.getColumnIndex(columnName);
-                    Field field;
-                    if (IDColumn.PRIMARY_KEY.equals(columnName)) {
-                        field = fieldMap.get(IDColumn.PRIMARY_KEY);
-                    } else {
-                        field = fieldMap.get(columnName);
-                    }
-                    if (field != null) {
-                        setFieldValue(t, field, cursor, index);
-                    }
-                }
-                list.add(t);
+                list.add(readRow(cursor, plan));
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -121,119 +614,88 @@ public class ClassInfo<T extends IDColumn> {
         return list;
     }
 
-    public String getCreateTableSql() throws NoSuchFieldException {
-        StringBuilder sql = new StringBuilder();
-        sql.append("CREATE TABLE IF NOT EXISTS `").append(this.tableName).append("` (`").append(IDColumn.PRIMARY_KEY).append("` INTEGER NOT NULL PRIMARY KEY");
-        for (Map.Entry<String, Field> entry : this.fieldMap.entrySet()) {
-            String javaField = entry.getKey();
-            if (IDColumn.PRIMARY_KEY.equals(javaField)) {
-                continue;
-            }
-            String tableField = conversionJavaFieldNameToDBFieldName(javaField);
-            sql.append(", `").append(tableField).append("` ").append(getDBFieldType(entry.getValue()));
+    /**
+     * 读取Cursor当前行创建实体
+     *
+     * @param cursor
+     * @param plan   {@link #getBindingPlan(Cursor)}返回的绑定计划
+     * @return
+     * @throws InstantiationException
+     * @throws IllegalAccessException
+     */
+    T readRow(Cursor cursor, BindingPlan plan) throws InstantiationException, IllegalAccessException {
+        T t;
+        if (mapper != null) {
+            t = mapper.newInstance();
+            mapper.readCursor(t, cursor, plan.mapperIndexes);
+        } else {
+            t = clazz.newInstance();
+            plan.read(t, cursor);
         }
-        sql.append(");");
-        return sql.toString();
+        takeSnapshot(t);
+        return t;
     }
 
-    public static String getDBFieldType(Field field) {
-        String type = "NULL";
-        Class<?> classType = field.getType();
-        if (classType.equals(String.class) || classType.equals(CharSequence.class)) {
-            type = "TEXT";
-        } else if (classType.equals(Integer.TYPE) || classType.equals(Integer.class) || classType.equals(Long.TYPE) || classType.equals(Long.class) || classType.equals(Short.TYPE) || classType.equals(Short.class) || classType.equals(Date.class) || classType.equals(Boolean.TYPE) || classType.equals(Boolean.class)) {
-            type = "INTEGER";
-        } else if (classType.equals(Double.TYPE) || classType.equals(Double.class) || classType.equals(Float.TYPE) || classType.equals(Float.class)) {
-            type = "REAL";
-        } else if (classType.equals(byte[].class)) {
-            type = "BLOB";
-        }
-        return type;
-    }
-
-    private static <T extends IDColumn> void putFieldValue(String fieldName, Field field, T t, ContentValues values) throws IllegalAccessException {
-        Class<?> classType = field.getType();
-        if (classType.equals(Integer.TYPE)) {
-            values.put(fieldName, field.getInt(t));
-        } else if (classType.equals(Integer.class)) {
-            Object value = field.get(t);
-            if (value != null) {
-                values.put(fieldName, (Integer) value);
-            }
-        } else if (classType.equals(String.class)) {
-            Object value = field.get(t);
-            if (value != null) {
-                values.put(fieldName, (String) value);
-            }
-        } else if (classType.equals(Boolean.TYPE)) {
-            values.put(fieldName, field.getBoolean(t));
-        } else if (classType.equals(Boolean.class)) {
-            Object value = field.get(t);
-            if (value != null) {
-                values.put(fieldName, (Boolean) value);
-            }
-        } else if (classType.equals(Long.TYPE)) {
-            values.put(fieldName, field.getLong(t));
-        } else if (classType.equals(Long.class)) {
-            Object value = field.get(t);
-            if (value != null) {
-                values.put(fieldName, (Long) value);
+    /**
+     * 获取结果集对应的绑定计划，相同字段布局的结果集共用一个计划
+     *
+     * @param cursor
+     * @return
+     */
+    BindingPlan getBindingPlan(Cursor cursor) {
+        List<String> layout = Arrays.asList(cursor.getColumnNames());
+        BindingPlan plan = bindingPlans.get(layout);
+        if (plan == null) {
+            plan = createBindingPlan(layout);
+            if (bindingPlans.size() >= MAX_BINDING_PLANS) {
+                bindingPlans.clear();
             }
-        } else if (classType.equals(Double.TYPE)) {
-            values.put(fieldName, field.getDouble(t));
-        } else if (classType.equals(Double.class)) {
-            Object value = field.get(t);
-            if (value != null) {
-                values.put(fieldName, (Double) value);
-            }
-        } else if (classType.equals(Float.TYPE)) {
-            values.put(fieldName, field.getFloat(t));
-        } else if (classType.equals(Float.class)) {
-            Object value = field.get(t);
-            if (value != null) {
-                values.put(fieldName, (Float) value);
-            }
-        } else if (classType.equals(byte[].class)) {
-            Object value = field.get(t);
-            if (value != null) {
-                values.put(fieldName, (byte[]) value);
+            bindingPlans.put(layout, plan);
+        }
+        return plan;
+    }
+
+    private BindingPlan createBindingPlan(List<String> layout) {
+        int count = 0;
+        FieldCodec[] columnCodecs = new FieldCodec[layout.size()];
+        for (int i = 0; i < columnCodecs.length; i++) {
+            columnCodecs[i] = codecMap.get(layout.get(i));
+            if (columnCodecs[i] != null) {
+                count++;
             }
-        } else if (classType.equals(Short.TYPE)) {
-            values.put(fieldName, field.getShort(t));
-        } else if (classType.equals(Short.class)) {
-            Object value = field.get(t);
-            if (value != null) {
-                values.put(fieldName, (Short) value);
+        }
+        int[] columnIndexes = new int[count];
+        FieldCodec[] planCodecs = new FieldCodec[count];
+        for (int i = 0, j = 0; i < columnCodecs.length; i++) {
+            if (columnCodecs[i] != null) {
+                columnIndexes[j] = i;
+                planCodecs[j++] = columnCodecs[i];
             }
-        } else if (classType.equals(Date.class)) {
-            Object value = field.get(t);
-            if (value != null) {
-                values.put(fieldName, ((Date) value).getTime());
+        }
+        int[] mapperIndexes = null;
+        if (mapper != null) {
+            String[] mapperColumns = mapper.getColumnNames();
+            mapperIndexes = new int[mapperColumns.length];
+            for (int i = 0; i < mapperColumns.length; i++) {
+                mapperIndexes[i] = layout.indexOf(mapperColumns[i]);
             }
         }
+        return new BindingPlan(columnIndexes, planCodecs, mapperIndexes);
     }
 
-    private static final <T extends IDColumn> void setFieldValue(T t, Field field, Cursor cursor, int index) throws IllegalAccessException {
-        Class<?> classType = field.getType();
-        if (classType.equals(Integer.TYPE) || classType.equals(Integer.class)) {
-            field.set(t, cursor.getInt(index));
-        } else if (classType.equals(String.class)) {
-            field.set(t, cursor.getString(index));
-        } else if (classType.equals(Boolean.TYPE) || classType.equals(Boolean.class)) {
-            field.set(t, cursor.getInt(index) == 1 ? true : false);
-        } else if (classType.equals(Long.TYPE) || classType.equals(Long.class)) {
-            field.set(t, cursor.getLong(index));
-        } else if (classType.equals(Double.TYPE) || classType.equals(Double.class)) {
-            field.set(t, cursor.getDouble(index));
-        } else if (classType.equals(Float.TYPE) || classType.equals(Float.class)) {
-            field.set(t, cursor.getFloat(index));
-        } else if (classType.equals(byte[].class)) {
-            field.set(t, cursor.getBlob(index));
-        } else if (classType.equals(Short.TYPE) || classType.equals(Short.class)) {
-            field.set(t, cursor.getShort(index));
-        } else if (classType.equals(Date.class)) {
-            field.set(t, new Date(cursor.getLong(index)));
+    public String getCreateTableSql() throws NoSuchFieldException {
+        StringBuilder sql = new StringBuilder();
+        sql.append("CREATE TABLE IF NOT EXISTS `").append(this.tableName).append("` (`").append(IDColumn.PRIMARY_KEY).append("` INTEGER NOT NULL PRIMARY KEY");
+        for (int i = 1; i < codecs.length; i++) {
+            FieldCodec codec = codecs[i];
+            sql.append(", `").append(codec.column).append("` ").append(codec.getSqlType());
         }
+        sql.append(");");
+        return sql.toString();
+    }
+
+    public static String getDBFieldType(Field field) {
+        return FieldCodec.of(field, null).getSqlType();
     }
 
     public static String conversionClassNameToTableName(String className) {
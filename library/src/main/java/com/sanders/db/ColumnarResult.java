@@ -0,0 +1,336 @@
+package com.sanders.db;
+
+import android.database.Cursor;
+
+import java.io.UnsupportedEncodingException;
+import java.util.BitSet;
+
+/**
+ * 按列存储的查询结果，由{@link DBProxy#queryColumnar(String, String...)}返回
+ * 每列按第一条非NULL值的类型存储为long[]、double[]或者String/byte[]数组，NULL用位图记录，
+ * 不为每行创建Map，也不装箱数值；按位置访问，行和列都从0开始
+ * 同一列出现INTEGER和FLOAT时按FLOAT存储；数值和文本混合时按文本存储
+ * Build.VERSION_CODES.HONEYCOMB以下版本无法获取值类型，全部按文本存储
+ * Created by sanders on 15/7/3.
+ */
+public final class ColumnarResult {
+
+    private final String[] names;
+    private final Column[] columns;
+    private final int rowCount;
+
+    ColumnarResult(String[] names, Column[] columns, int rowCount) {
+        this.names = names;
+        this.columns = columns;
+        this.rowCount = rowCount;
+    }
+
+    /**
+     * 从Cursor当前位置之后读取全部行
+     *
+     * @param cursor
+     * @param typed  是否可以使用Cursor.getType
+     * @return
+     */
+    static ColumnarResult read(Cursor cursor, boolean typed) {
+        String[] names = cursor.getColumnNames();
+        Column[] columns = new Column[names.length];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = new Column();
+        }
+        int row = 0;
+        while (cursor.moveToNext()) {
+            for (int i = 0; i < columns.length; i++) {
+                columns[i].add(row, cursor, i, typed);
+            }
+            row++;
+        }
+        for (Column column : columns) {
+            column.trim(row);
+        }
+        return new ColumnarResult(names, columns, row);
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public int getColumnCount() {
+        return names.length;
+    }
+
+    public String getColumnName(int column) {
+        return names[column];
+    }
+
+    /**
+     * 字段名对应的列位置，循环读取前先获取一次
+     *
+     * @param name
+     * @return 没有此字段返回-1
+     */
+    public int getColumnIndex(String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 列的存储类型
+     *
+     * @param column
+     * @return Cursor.FIELD_TYPE_INTEGER、FIELD_TYPE_FLOAT、FIELD_TYPE_STRING、FIELD_TYPE_BLOB，整列都是NULL时为FIELD_TYPE_NULL
+     */
+    public int getType(int column) {
+        return columns[column].type;
+    }
+
+    public boolean isNull(int row, int column) {
+        checkRow(row);
+        return columns[column].nulls.get(row);
+    }
+
+    /**
+     * @param row
+     * @param column
+     * @return NULL返回0
+     */
+    public long getLong(int row, int column) {
+        checkRow(row);
+        Column c = columns[column];
+        switch (c.type) {
+            case Cursor.FIELD_TYPE_INTEGER:
+                return c.longs[row];
+            case Cursor.FIELD_TYPE_FLOAT:
+                return (long) c.doubles[row];
+            case Cursor.FIELD_TYPE_NULL:
+                return 0;
+            default:
+                return c.nulls.get(row) ? 0 : Long.parseLong(getString(row, column));
+        }
+    }
+
+    /**
+     * @param row
+     * @param column
+     * @return NULL返回0
+     */
+    public double getDouble(int row, int column) {
+        checkRow(row);
+        Column c = columns[column];
+        switch (c.type) {
+            case Cursor.FIELD_TYPE_INTEGER:
+                return c.longs[row];
+            case Cursor.FIELD_TYPE_FLOAT:
+                return c.doubles[row];
+            case Cursor.FIELD_TYPE_NULL:
+                return 0;
+            default:
+                return c.nulls.get(row) ? 0 : Double.parseDouble(getString(row, column));
+        }
+    }
+
+    /**
+     * @param row
+     * @param column
+     * @return NULL返回null
+     * @throws IllegalStateException 值是BLOB
+     */
+    public String getString(int row, int column) {
+        checkRow(row);
+        Column c = columns[column];
+        if (c.nulls.get(row)) {
+            return null;
+        }
+        switch (c.type) {
+            case Cursor.FIELD_TYPE_INTEGER:
+                return String.valueOf(c.longs[row]);
+            case Cursor.FIELD_TYPE_FLOAT:
+                return String.valueOf(c.doubles[row]);
+            case Cursor.FIELD_TYPE_NULL:
+                return null;
+            default:
+                Object value = c.objects[row];
+                if (value instanceof byte[]) {
+                    throw new IllegalStateException(names[column] + "第" + row + "行是BLOB！");
+                }
+                return (String) value;
+        }
+    }
+
+    /**
+     * @param row
+     * @param column
+     * @return NULL返回null，文本返回UTF-8编码
+     * @throws IllegalStateException 值是数值
+     */
+    public byte[] getBlob(int row, int column) {
+        checkRow(row);
+        Column c = columns[column];
+        if (c.nulls.get(row) || c.type == Cursor.FIELD_TYPE_NULL) {
+            return null;
+        }
+        if (c.objects == null) {
+            throw new IllegalStateException(names[column] + "是数值！");
+        }
+        Object value = c.objects[row];
+        if (value instanceof byte[]) {
+            return (byte[]) value;
+        }
+        try {
+            return ((String) value).getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= rowCount) {
+            throw new IndexOutOfBoundsException("row=" + row + ", rowCount=" + rowCount);
+        }
+    }
+
+    /**
+     * 一列的数据，只使用与type对应的数组
+     */
+    static final class Column {
+        private static final int INITIAL_SIZE = 64;
+
+        int type = Cursor.FIELD_TYPE_NULL;
+        long[] longs;
+        double[] doubles;
+        /**
+         * FIELD_TYPE_STRING和FIELD_TYPE_BLOB的值，文本和BLOB混合时两种都有
+         */
+        Object[] objects;
+        final BitSet nulls = new BitSet();
+
+        void add(int row, Cursor cursor, int index, boolean typed) {
+            int valueType;
+            if (typed) {
+                valueType = cursor.getType(index);
+            } else {
+                valueType = cursor.isNull(index) ? Cursor.FIELD_TYPE_NULL : Cursor.FIELD_TYPE_STRING;
+            }
+            if (valueType == Cursor.FIELD_TYPE_NULL) {
+                nulls.set(row);
+                if (type != Cursor.FIELD_TYPE_NULL) {
+                    ensureCapacity(row + 1);
+                }
+                return;
+            }
+            if (type == Cursor.FIELD_TYPE_NULL) {
+                type = valueType;
+                ensureCapacity(Math.max(row + 1, INITIAL_SIZE));
+            } else if (type != valueType) {
+                promote(valueType, row);
+            }
+            ensureCapacity(row + 1);
+            switch (type) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    longs[row] = cursor.getLong(index);
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    doubles[row] = cursor.getDouble(index);
+                    break;
+                default:
+                    objects[row] = valueType == Cursor.FIELD_TYPE_BLOB ? cursor.getBlob(index) : cursor.getString(index);
+                    break;
+            }
+        }
+
+        /**
+         * 出现与当前存储类型不同的值：INTEGER遇到FLOAT转为FLOAT，FLOAT遇到INTEGER不变，其它情况转为文本
+         *
+         * @param valueType
+         * @param rows      已读取的行数
+         */
+        private void promote(int valueType, int rows) {
+            if (type == Cursor.FIELD_TYPE_FLOAT && valueType == Cursor.FIELD_TYPE_INTEGER) {
+                return;
+            }
+            if (type == Cursor.FIELD_TYPE_INTEGER && valueType == Cursor.FIELD_TYPE_FLOAT) {
+                doubles = new double[longs.length];
+                for (int i = 0; i < rows; i++) {
+                    doubles[i] = longs[i];
+                }
+                longs = null;
+                type = Cursor.FIELD_TYPE_FLOAT;
+                return;
+            }
+            if (type == Cursor.FIELD_TYPE_INTEGER || type == Cursor.FIELD_TYPE_FLOAT) {
+                objects = new Object[type == Cursor.FIELD_TYPE_INTEGER ? longs.length : doubles.length];
+                for (int i = 0; i < rows; i++) {
+                    if (!nulls.get(i)) {
+                        objects[i] = type == Cursor.FIELD_TYPE_INTEGER ? String.valueOf(longs[i]) : String.valueOf(doubles[i]);
+                    }
+                }
+                longs = null;
+                doubles = null;
+            }
+            type = Cursor.FIELD_TYPE_STRING;
+        }
+
+        private void ensureCapacity(int size) {
+            switch (type) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    if (longs == null || longs.length < size) {
+                        long[] grown = new long[grow(longs == null ? 0 : longs.length, size)];
+                        if (longs != null) {
+                            System.arraycopy(longs, 0, grown, 0, longs.length);
+                        }
+                        longs = grown;
+                    }
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    if (doubles == null || doubles.length < size) {
+                        double[] grown = new double[grow(doubles == null ? 0 : doubles.length, size)];
+                        if (doubles != null) {
+                            System.arraycopy(doubles, 0, grown, 0, doubles.length);
+                        }
+                        doubles = grown;
+                    }
+                    break;
+                default:
+                    if (objects == null || objects.length < size) {
+                        Object[] grown = new Object[grow(objects == null ? 0 : objects.length, size)];
+                        if (objects != null) {
+                            System.arraycopy(objects, 0, grown, 0, objects.length);
+                        }
+                        objects = grown;
+                    }
+                    break;
+            }
+        }
+
+        private static int grow(int length, int size) {
+            return Math.max(length * 2, size);
+        }
+
+        /**
+         * 去掉数组多余的长度
+         *
+         * @param rows
+         */
+        void trim(int rows) {
+            if (longs != null && longs.length != rows) {
+                long[] trimmed = new long[rows];
+                System.arraycopy(longs, 0, trimmed, 0, rows);
+                longs = trimmed;
+            }
+            if (doubles != null && doubles.length != rows) {
+                double[] trimmed = new double[rows];
+                System.arraycopy(doubles, 0, trimmed, 0, rows);
+                doubles = trimmed;
+            }
+            if (objects != null && objects.length != rows) {
+                Object[] trimmed = new Object[rows];
+                System.arraycopy(objects, 0, trimmed, 0, rows);
+                objects = trimmed;
+            }
+        }
+    }
+}
@@ -3,18 +3,40 @@ package com.sanders.db;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.os.Build;
+import android.os.SystemClock;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by sanders on 15/4/4.
@@ -23,9 +45,38 @@ import java.util.Set;
 public class DBProxy {
 
     /**
-     * 用于缓存实体类Class和实体类详情
+     * SQLite一条语句默认最多999个参数（SQLITE_MAX_VARIABLE_NUMBER）
      */
-    public Map<Class, ClassInfo> classInfoMap = new HashMap<Class, ClassInfo>();
+    private static final int MAX_VARIABLES = 999;
+
+    /**
+     * 回滚到SAVEPOINT的语句前缀
+     * SQLiteDatabase.execSQL在执行前用DatabaseUtils.getSqlStatementType判断语句类型，ROLLBACK开头的语句
+     * 会被当作结束整个Android事务处理；加注释前缀后按普通语句交给SQLite执行，只回滚到SAVEPOINT
+     */
+    private static final String ROLLBACK_TO_SAVEPOINT = "/* savepoint */ ROLLBACK TO ";
+
+    /**
+     * 当前系统能否只回滚嵌套事务：Build.VERSION_CODES.HONEYCOMB以下execSQL不判断语句类型；
+     * 以上版本用同一个判断方法检查，判断时跳过注释的版本返回STATEMENT_ABORT，此时不使用SAVEPOINT
+     */
+    private static final boolean SAVEPOINT_ROLLBACK_SUPPORTED = Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB
+            || DatabaseUtils.getSqlStatementType(ROLLBACK_TO_SAVEPOINT + "cube_savepoint") != DatabaseUtils.STATEMENT_ABORT;
+
+    /**
+     * 预编译语句缓存的最大数量，超出时关闭最久没有使用的语句；只更新修改字段的语句按字段组合各不相同
+     */
+    private static final int MAX_STATEMENTS = 64;
+
+    /**
+     * queryLongs等方法结果数组的初始长度，不使用Cursor.getCount()，避免为了计数多扫描一遍结果集
+     */
+    private static final int INITIAL_ARRAY_SIZE = 64;
+
+    /**
+     * 用于缓存实体类Class和实体类详情，线程安全，查找时不占用DBProxy锁
+     */
+    public final ConcurrentMap<Class, ClassInfo> classInfoMap = new ConcurrentHashMap<Class, ClassInfo>();
 
     /**
      * SQLiteOpenHelper实现类
@@ -38,10 +89,122 @@ public class DBProxy {
     private SQLiteDatabase database;
 
     /**
-     * 数据库操作计数，防止异常关闭问题
+     * 正在使用数据库的操作计数，为0时数据库才可以空闲关闭
      */
     private int closeIndex = 0;
 
+    /**
+     * 空闲多少毫秒后关闭数据库，小于等于0表示一直打开直到{@link #shutdown()}
+     */
+    private long idleTimeout = -1;
+
+    /**
+     * 最近一次计数归0的时间
+     */
+    private long idleSince;
+
+    /**
+     * 空闲关闭检查线程，设置了空闲超时才创建
+     */
+    private ScheduledExecutorService idleExecutor;
+
+    /**
+     * 是否已有待执行的空闲关闭检查
+     */
+    private boolean idleCheckScheduled;
+
+    /**
+     * 是否已调用{@link #shutdown()}
+     */
+    private boolean shutdown;
+
+    /**
+     * 延迟写入队列，没有开启时为null
+     */
+    private WriteBehindQueue writeBehindQueue;
+
+    /**
+     * 按主键查询的实体缓存，没有开启时为null
+     */
+    private EntityCache entityCache;
+
+    /**
+     * 查询结果缓存，没有开启时为null
+     */
+    private QueryCache queryCache;
+
+    /**
+     * 是否开启修改跟踪
+     */
+    private boolean dirtyTracking;
+
+    /**
+     * {@link ExternalBlob}字段的文件存储
+     */
+    private BlobStore blobStore = new BlobStore(this, null);
+
+    /**
+     * 当前线程runInTransaction的嵌套层数，大于0时写操作加入外层事务
+     */
+    private final ThreadLocal<int[]> transactionDepth = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+
+    /**
+     * 不支持SAVEPOINT回滚时，嵌套的runInTransaction失败后整个事务只能回滚，由DBProxy对象锁保护
+     */
+    private boolean rollbackOnly;
+
+    /**
+     * 最外层写事务是否已调用setTransactionSuccessful，由DBProxy对象锁保护
+     */
+    private boolean transactionSuccessful;
+
+    /**
+     * 写事务中写入的实体的修改跟踪快照，最外层事务提交后才设置到实体，回滚时丢弃，由DBProxy对象锁保护
+     * 提前设置的话，事务回滚后实体仍然认为字段已写入，再次update时不会写入这些字段
+     */
+    private final List<PendingSnapshot> pendingSnapshots = new ArrayList<PendingSnapshot>();
+
+    /**
+     * 加入外层事务的多行写操作的嵌套层数、是否成功以及开始时的快照和文件位置，由DBProxy对象锁保护
+     * 见{@link #beginBatch()}
+     */
+    private int batchDepth;
+    private boolean batchSuccessful;
+    private int batchPendingMark;
+    private int batchBlobMark;
+    private String batchSavepoint;
+
+    /**
+     * 保护数据库打开关闭和预编译语句缓存的锁，只做短时间持有
+     * 写操作使用DBProxy对象锁串行执行，读操作不占用DBProxy对象锁
+     */
+    private final Object connectionLock = new Object();
+
+    /**
+     * 写操作使用的预编译语句缓存，key为SQL语句，数据库关闭时释放
+     */
+    private final Map<String, SQLiteStatement> statements = new LinkedHashMap<String, SQLiteStatement>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SQLiteStatement> eldest) {
+            //写操作在DBProxy对象锁中串行执行，被移除的语句已经执行完，可以直接关闭
+            if (size() > MAX_STATEMENTS) {
+                eldest.getValue().close();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    /**
+     * 预编译语句所属的数据库
+     */
+    private SQLiteDatabase statementDatabase;
+
     /**
      * 构建数据库操作类
      */
@@ -66,6 +229,41 @@ public class DBProxy {
          * 自动建表Class集合
          */
         private Set<Class> classes = new HashSet<Class>();
+        /**
+         * 是否开启WAL模式
+         */
+        private boolean writeAheadLogging;
+        /**
+         * 空闲关闭数据库的超时时间
+         */
+        private long idleTimeout = -1;
+        /**
+         * 延迟写入每批提交的条数，小于等于0表示不开启
+         */
+        private int writeBehindBatchSize;
+        private long writeBehindFlushInterval;
+        private int writeBehindCapacity;
+        private OnWriteFailureListener writeFailureListener;
+        /**
+         * 实体缓存的最大数量，小于等于0表示不开启
+         */
+        private int entityCacheSize;
+        /**
+         * 查询结果缓存的最大行数，小于等于0表示不开启
+         */
+        private int queryCacheRows;
+        /**
+         * 开启查询结果缓存的实体类
+         */
+        private Set<Class> queryCacheClasses = new HashSet<Class>();
+        /**
+         * 是否开启修改跟踪
+         */
+        private boolean dirtyTracking;
+        /**
+         * {@link ExternalBlob}字段的文件目录
+         */
+        private File blobDir;
 
         /**
          * 设置数据库名称
@@ -121,6 +319,107 @@ public class DBProxy {
             return this;
         }
 
+        /**
+         * 开启WAL(Write-Ahead Logging)模式，需要Build.VERSION_CODES.HONEYCOMB以上版本，低版本忽略此设置
+         * 开启后读操作使用连接池中的只读连接，查询之间以及查询与写操作之间可以并行执行，写操作仍然串行
+         *
+         * @param writeAheadLogging
+         * @return
+         */
+        public DBBuilder setWriteAheadLogging(boolean writeAheadLogging) {
+            this.writeAheadLogging = writeAheadLogging;
+            return this;
+        }
+
+        /**
+         * 设置数据库空闲多少毫秒后自动关闭，下次操作时重新打开
+         * 默认不自动关闭，数据库打开后一直保持到{@link DBProxy#shutdown()}，页缓存和预编译语句缓存可以一直复用
+         * 外部数据库文件不会空闲关闭
+         *
+         * @param idleTimeout
+         * @return
+         */
+        public DBBuilder setIdleTimeout(long idleTimeout) {
+            this.idleTimeout = idleTimeout;
+            return this;
+        }
+
+        /**
+         * 开启延迟写入，{@link DBProxy#insertOrUpdateLater(IDColumn)}入队的实体由后台线程攒批后在一个事务中提交
+         *
+         * @param batchSize     达到多少条提交一次
+         * @param flushInterval 第一条入队后最多等待多少毫秒提交
+         * @param capacity      队列容量，队列满时入队线程阻塞等待
+         * @return
+         */
+        public DBBuilder setWriteBehind(int batchSize, long flushInterval, int capacity) {
+            this.writeBehindBatchSize = batchSize;
+            this.writeBehindFlushInterval = flushInterval;
+            this.writeBehindCapacity = capacity;
+            return this;
+        }
+
+        /**
+         * 设置延迟写入失败回调，不设置时失败只打印异常并在{@link DBProxy#flush()}时抛出
+         *
+         * @param listener
+         * @return
+         */
+        public DBBuilder setOnWriteFailure(OnWriteFailureListener listener) {
+            this.writeFailureListener = listener;
+            return this;
+        }
+
+        /**
+         * 开启按主键查询的实体缓存，{@link DBProxy#query(Class, long)}命中时不查询数据库
+         * 缓存返回的是同一个实体对象，修改后需要调用update保存，否则其它地方读到的也是修改后的对象
+         *
+         * @param maxSize 最多缓存的实体数量，超出时移除最久没有使用的
+         * @return
+         */
+        public DBBuilder setEntityCacheSize(int maxSize) {
+            this.entityCacheSize = maxSize;
+            return this;
+        }
+
+        /**
+         * 开启查询结果缓存，classes的queryList、querySqlList、queryCount按SQL和参数缓存结果，
+         * 通过DBProxy写入相关的表时移除对应结果，返回的集合是缓存的副本，集合中的实体对象是共享的
+         * 在DBProxy之外修改数据库后需要调用{@link DBProxy#clearQueryCache()}
+         *
+         * @param maxRows 缓存结果的总行数上限，超出时移除最久没有使用的结果
+         * @param classes 开启缓存的实体类
+         * @return
+         */
+        public DBBuilder setQueryCache(int maxRows, Class... classes) {
+            this.queryCacheRows = maxRows;
+            this.queryCacheClasses.addAll(Arrays.asList(classes));
+            return this;
+        }
+
+        /**
+         * 开启修改跟踪，通过DBProxy读取或者写入的实体保存一份字段值，
+         * 按主键update时只更新修改过的字段，没有修改时不执行UPDATE；读取时多一次字段复制，BLOB字段保存副本
+         *
+         * @param dirtyTracking
+         * @return
+         */
+        public DBBuilder setDirtyTracking(boolean dirtyTracking) {
+            this.dirtyTracking = dirtyTracking;
+            return this;
+        }
+
+        /**
+         * 设置{@link ExternalBlob}字段的文件目录，默认是数据库文件路径加"-blobs"
+         *
+         * @param blobDir
+         * @return
+         */
+        public DBBuilder setBlobDir(File blobDir) {
+            this.blobDir = blobDir;
+            return this;
+        }
+
         /**
          * 设置数据库升级操作接口实现类
          *
@@ -141,14 +440,39 @@ public class DBProxy {
          */
         public DBProxy build(Context context) {
             DBProxy proxy = new DBProxy();
+            proxy.setIdleTimeout(idleTimeout);
+            File blobDir = this.blobDir;
             if (dbName != null && dbName.trim().length() > 0 && dbVersion > 0) {
+                if (blobDir == null) {
+                    blobDir = BlobStore.getDefaultDir(context.getDatabasePath(dbName));
+                }
                 SQLiteOpenHelperProxy helper = new SQLiteOpenHelperProxy(context, dbName, dbVersion, classes, upgrade);
                 helper.setDBProxy(proxy);
+                helper.setWriteAheadLogging(writeAheadLogging);
                 proxy.setSQLiteOpenHelper(helper);
             } else if (dbFile != null) {
+                if (blobDir == null) {
+                    blobDir = BlobStore.getDefaultDir(dbFile);
+                }
                 SQLiteDatabase database = SQLiteDatabase.openOrCreateDatabase(dbFile, null);
+                if (writeAheadLogging && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                    database.enableWriteAheadLogging();
+                }
                 proxy.setSQLiteDatabase(database);
             }
+            proxy.dirtyTracking = dirtyTracking;
+            proxy.blobStore = new BlobStore(proxy, blobDir);
+            proxy.warmUp(classes);
+            if (entityCacheSize > 0) {
+                proxy.entityCache = new EntityCache(entityCacheSize);
+            }
+            if (queryCacheRows > 0 && !queryCacheClasses.isEmpty()) {
+                proxy.queryCache = new QueryCache(queryCacheRows, new HashSet<Class>(queryCacheClasses));
+            }
+            if (writeBehindBatchSize > 0) {
+                proxy.writeBehindQueue = new WriteBehindQueue(proxy, writeBehindBatchSize, writeBehindFlushInterval, writeBehindCapacity,
+                        writeFailureListener);
+            }
             return proxy;
         }
     }
@@ -170,6 +494,20 @@ public class DBProxy {
         this.database = database;
     }
 
+    private void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+        if (idleTimeout > 0) {
+            this.idleExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "DBProxy-idle");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
     /**
      * 构建数据库操作类
      *
@@ -179,6 +517,17 @@ public class DBProxy {
         this.helper = helper;
     }
 
+    /**
+     * 预先解析实体类Class的详细信息，避免首次操作数据库时再做反射解析
+     *
+     * @param classes
+     */
+    private void warmUp(Collection<Class> classes) {
+        for (Class clazz : classes) {
+            getClassInfo(clazz);
+        }
+    }
+
     /**
      * 获取一个实体类Class的详细信息并缓存
      *
@@ -186,25 +535,30 @@ public class DBProxy {
      * @param <T>
      * @return
      */
-    private synchronized <T extends IDColumn> ClassInfo getClassInfo(T t) {
-        ClassInfo classInfo = classInfoMap.get(t.getClass());
-        if (classInfo == null) {
-            classInfo = new ClassInfo(t.getClass());
-        }
-        return classInfo;
+    private <T extends IDColumn> ClassInfo getClassInfo(T t) {
+        return getClassInfo(t.getClass());
     }
 
     /**
      * 获取一个实体类Class的详细信息并缓存
+     * 每个Class只解析一次，并发时以先放入缓存的为准
      *
      * @param clazz
      * @param <T>
      * @return
      */
-    public synchronized <T extends IDColumn> ClassInfo getClassInfo(Class<T> clazz) {
+    public <T extends IDColumn> ClassInfo getClassInfo(Class<T> clazz) {
         ClassInfo classInfo = classInfoMap.get(clazz);
         if (classInfo == null) {
             classInfo = new ClassInfo(clazz);
+            classInfo.setDirtyTracking(dirtyTracking);
+            if (classInfo.hasExternalBlobs()) {
+                classInfo.setBlobStore(blobStore);
+            }
+            ClassInfo cached = classInfoMap.putIfAbsent(clazz, classInfo);
+            if (cached != null) {
+                classInfo = cached;
+            }
         }
         return classInfo;
     }
@@ -221,23 +575,20 @@ public class DBProxy {
             return -1;
         }
         ClassInfo<T> classInfo = getClassInfo(t);
-        String tableName = classInfo.getTableName();
-        ContentValues values = classInfo.getContentValues(t);
-        if (values != null) {
-            SQLiteDatabase database = getDatabase();
-            database.beginTransaction();
-            long id = database.insert(tableName, null, values);
-            t.setPrimaryKey(id);
-            database.setTransactionSuccessful();
-            database.endTransaction();
-            close(database);
-            return id;
+        long id;
+        SQLiteDatabase database = beginTransaction();
+        try {
+            id = insertRow(database, classInfo, t);
+            setTransactionSuccessful(database);
+        } finally {
+            endTransaction(database);
         }
-        return -1;
+        return id;
     }
 
     /**
      * 批量插入对应实体类到数据库。建议集合不要太大，这是一次性事务
+     * 整个集合共用一条预编译插入语句
      *
      * @param list
      * @param <T>
@@ -247,18 +598,94 @@ public class DBProxy {
             return;
         }
         ClassInfo<T> classInfo = getClassInfo(list.get(0));
-        SQLiteDatabase database = getDatabase();
-        database.beginTransaction();
-        for (T t : list) {
-            ContentValues values = classInfo.getContentValues(t);
-            if (values != null) {
-                long id = database.insert(classInfo.getTableName(), null, values);
-                t.setPrimaryKey(id);
+        SQLiteDatabase database = beginBatch();
+        try {
+            for (T t : list) {
+                insertRow(database, classInfo, t);
             }
+            setTransactionSuccessful(database);
+        } finally {
+            endBatch(database);
         }
-        database.setTransactionSuccessful();
-        database.endTransaction();
-        close(database);
+    }
+
+    /**
+     * 分批流式插入实体到数据库，每chunkSize条提交一次事务
+     * 不要求数据一次性加载到内存，每批提交后释放写锁，适合导入大量数据
+     *
+     * @param iterable
+     * @param chunkSize 每批提交的行数
+     * @param listener  每批提交后回调，可以为null
+     * @param <T>
+     * @return 插入的总行数
+     */
+    public <T extends IDColumn> long insert(Iterable<T> iterable, int chunkSize, OnProgressListener listener) {
+        if (iterable == null) {
+            return 0;
+        }
+        return insert(iterable.iterator(), chunkSize, listener);
+    }
+
+    /**
+     * 分批流式插入实体到数据库，每chunkSize条提交一次事务
+     * 不要求数据一次性加载到内存，每批提交后释放写锁，适合导入大量数据
+     * 每批先从iterator读入内存再获取写锁，iterator.next()不占用写锁；整个过程保持数据库打开，预编译语句一直有效
+     * 在{@link #runInTransaction(TransactionCallback)}中调用时所有批次加入外层事务，由外层一次提交，不会每批提交
+     *
+     * @param iterator
+     * @param chunkSize 每批提交的行数
+     * @param listener  每批提交后回调，可以为null
+     * @param <T>
+     * @return 插入的总行数
+     */
+    public <T extends IDColumn> long insert(Iterator<T> iterator, int chunkSize, OnProgressListener listener) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunkSize必须大于0！");
+        }
+        if (iterator == null || !iterator.hasNext()) {
+            return 0;
+        }
+        long count = 0;
+        ClassInfo<T> classInfo = null;
+        List<T> chunk = new ArrayList<T>(Math.min(chunkSize, INITIAL_ARRAY_SIZE));
+        //整个过程租用数据库，批次之间不会空闲关闭
+        SQLiteDatabase lease = getDatabase();
+        try {
+            while (iterator.hasNext()) {
+                chunk.clear();
+                while (chunk.size() < chunkSize && iterator.hasNext()) {
+                    T t = iterator.next();
+                    if (t != null) {
+                        chunk.add(t);
+                    }
+                }
+                if (chunk.isEmpty()) {
+                    continue;
+                }
+                if (classInfo == null) {
+                    classInfo = getClassInfo(chunk.get(0));
+                }
+                synchronized (this) {
+                    SQLiteDatabase database = beginBatch();
+                    try {
+                        for (T t : chunk) {
+                            if (insertRow(database, classInfo, t) != -1) {
+                                count++;
+                            }
+                        }
+                        setTransactionSuccessful(database);
+                    } finally {
+                        endBatch(database);
+                    }
+                }
+                if (listener != null) {
+                    listener.onProgress(count);
+                }
+            }
+        } finally {
+            close(lease);
+        }
+        return count;
     }
 
     /**
@@ -279,17 +706,21 @@ public class DBProxy {
         }
         ClassInfo<T> classInfo = getClassInfo(t);
         String tableName = classInfo.getTableName();
-        ContentValues values = classInfo.getContentValues(t);
-        if (values == null) {
-            return -1;
+        int row;
+        SQLiteDatabase database = beginTransaction();
+        try {
+            //@ExternalBlob字段在取值时写入文件，必须在事务开始之后，回滚时才能删除
+            ContentValues values = classInfo.getContentValues(t);
+            if (values == null) {
+                return -1;
+            }
+            values.remove(IDColumn.PRIMARY_KEY);
+            row = database.update(tableName, values, where, args);
+            evictCache(t.getClass());
+            setTransactionSuccessful(database);
+        } finally {
+            endTransaction(database);
         }
-        values.remove(IDColumn.PRIMARY_KEY);
-        SQLiteDatabase database = getDatabase();
-        database.beginTransaction();
-        int row = database.update(tableName, values, where, args);
-        database.setTransactionSuccessful();
-        database.endTransaction();
-        close(database);
         return row;
     }
 
@@ -307,7 +738,7 @@ public class DBProxy {
         } else if ((keyId = t.getPrimaryKey()) < 1) {
             return -1;
         }
-        return update(t, IDColumn.PRIMARY_KEY + "=" + keyId);
+        return update(t, keyId);
     }
 
     /**
@@ -319,11 +750,24 @@ public class DBProxy {
      * @return
      */
     public synchronized <T extends IDColumn> int update(T t, long keyId) {
-        return update(t, IDColumn.PRIMARY_KEY + "=" + keyId);
+        if (t == null) {
+            throw new NullPointerException("T对象不能为NULL！");
+        }
+        ClassInfo<T> classInfo = getClassInfo(t);
+        int row;
+        SQLiteDatabase database = beginTransaction();
+        try {
+            row = updateRow(database, classInfo, t, keyId);
+            setTransactionSuccessful(database);
+        } finally {
+            endTransaction(database);
+        }
+        return row;
     }
 
     /**
      * 更具集合实体中的主键(_key_id)更新实体到数据库
+     * 整个集合共用一条预编译更新语句
      *
      * @param list
      * @param <T>
@@ -333,88 +777,466 @@ public class DBProxy {
             return;
         }
         ClassInfo<T> classInfo = getClassInfo(list.get(0));
-        String tableName = classInfo.getTableName();
-        SQLiteDatabase database = getDatabase();
-        database.beginTransaction();
-        for (T t : list) {
-            long keyId = t.getPrimaryKey();
-            ContentValues values = classInfo.getContentValues(t);
-            if (values != null && keyId > 0) {
-                values.remove(IDColumn.PRIMARY_KEY);
-                database.update(tableName, values, IDColumn.PRIMARY_KEY + "=" + keyId, null);
+        SQLiteDatabase database = beginBatch();
+        try {
+            for (T t : list) {
+                long keyId = t.getPrimaryKey();
+                if (keyId > 0) {
+                    updateRow(database, classInfo, t, keyId);
+                }
             }
+            setTransactionSuccessful(database);
+        } finally {
+            endBatch(database);
         }
-        database.setTransactionSuccessful();
-        database.endTransaction();
-        close(database);
     }
 
+    /**
+     * 插入或者更新实体，主键大于0时按主键更新
+     * 否则实体类声明了唯一索引时按第一个唯一索引的字段去重，见{@link #upsert(IDColumn, String...)}
+     *
+     * @param t
+     * @param <T>
+     * @return
+     */
     public synchronized <T extends IDColumn> long insertOrUpdate(T t) {
         if (t == null) {
             return -1;
         }
+        if (t.getPrimaryKey() > 0) {
+            return update(t);
+        }
+        if (getClassInfo(t).getUniqueKey() != null) {
+            return upsert(t);
+        }
+        return insert(t);
+    }
+
+    /**
+     * 按业务主键插入或者更新实体：keyColumns的值已存在时更新那一行，否则插入，并把主键设置回实体
+     * keyColumns上应该有唯一索引（{@link Index#unique()}），查询主键时是索引查找
+     *
+     * @param t
+     * @param keyColumns 数据库字段名或者Java字段名，为空时使用实体类的第一个唯一索引
+     * @param <T>
+     * @return 主键
+     * @throws IllegalArgumentException keyColumns不是本表字段，或者为空时实体类没有唯一索引
+     */
+    public synchronized <T extends IDColumn> long upsert(T t, String... keyColumns) {
+        if (t == null) {
+            throw new NullPointerException("T对象不能为NULL！");
+        }
         ClassInfo<T> classInfo = getClassInfo(t);
-        ContentValues values = classInfo.getContentValues(t);
-        long rowId = -1;
-        if (values != null) {
-            SQLiteDatabase database = getDatabase();
-            if (t.getPrimaryKey() > 0) {
-                rowId = update(t);
-            } else {
-                rowId = insert(t);
-            }
+        FieldCodec[] keyCodecs = getUpsertKey(classInfo, keyColumns);
+        long id;
+        SQLiteDatabase database = beginTransaction();
+        try {
+            id = upsertRow(database, classInfo, t, keyCodecs);
+            setTransactionSuccessful(database);
+        } finally {
+            endTransaction(database);
         }
-        return rowId;
+        return id;
     }
 
     /**
-     * 插入或者更新集合
+     * 按业务主键批量插入或者更新，整个集合在一个事务中，共用预编译的查询、插入和更新语句
      *
      * @param list
+     * @param keyColumns 数据库字段名或者Java字段名，为空时使用实体类的第一个唯一索引
      * @param <T>
+     * @see #upsert(IDColumn, String...)
      */
-    public synchronized <T extends IDColumn> void insertOrUpdate(List<T> list) {
+    public synchronized <T extends IDColumn> void upsert(List<T> list, String... keyColumns) {
         if (isEmpty(list)) {
             return;
         }
         ClassInfo<T> classInfo = getClassInfo(list.get(0));
-        String tableName = classInfo.getTableName();
-        SQLiteDatabase database = getDatabase();
-        database.beginTransaction();
-        for (T t : list) {
-            ContentValues values = classInfo.getContentValues(t);
-            if (values != null) {
-                long keyId = t.getPrimaryKey();
-                if (keyId > 0) {
-                    database.update(tableName, values, IDColumn.PRIMARY_KEY + "=" + keyId, null);
-                } else {
-                    database.insert(tableName, null, values);
-                }
+        FieldCodec[] keyCodecs = getUpsertKey(classInfo, keyColumns);
+        SQLiteDatabase database = beginBatch();
+        try {
+            for (T t : list) {
+                upsertRow(database, classInfo, t, keyCodecs);
             }
+            setTransactionSuccessful(database);
+        } finally {
+            endBatch(database);
         }
-        database.setTransactionSuccessful();
-        database.endTransaction();
-        close(database);
     }
 
-    /**
-     * 执行原生sql
-     *
-     * @param sql
-     */
-    public synchronized void execSQL(String... sql) {
-        SQLiteDatabase database = getDatabase();
-        database.beginTransaction();
-        for (String s : sql) {
-            database.execSQL(s);
+    private FieldCodec[] getUpsertKey(ClassInfo<?> classInfo, String... keyColumns) {
+        if (keyColumns != null && keyColumns.length > 0) {
+            return classInfo.getCodecs(keyColumns);
         }
-        database.setTransactionSuccessful();
-        database.endTransaction();
-        close(database);
+        FieldCodec[] keyCodecs = classInfo.getUniqueKey();
+        if (keyCodecs == null) {
+            throw new IllegalArgumentException(classInfo.getTableName() + "没有唯一索引，请指定keyColumns！");
+        }
+        return keyCodecs;
     }
 
     /**
-     * 更具条件删除数据库内容
+     * 先用预编译语句按业务主键查询主键，存在时按主键更新，否则插入
+     * INSERT ... ON CONFLICT DO UPDATE需要SQLite 3.24（Build.VERSION_CODES.R），并且不能返回更新行的主键，所以不使用
+     *
+     * @param database
+     * @param classInfo
+     * @param t
+     * @param keyCodecs
+     * @param <T>
+     * @return
+     */
+    private <T extends IDColumn> long upsertRow(SQLiteDatabase database, ClassInfo<T> classInfo, T t, FieldCodec[] keyCodecs) {
+        SQLiteStatement statement = getStatement(database, classInfo.getKeyLookupSql(keyCodecs));
+        try {
+            for (int i = 0; i < keyCodecs.length; i++) {
+                keyCodecs[i].bind(statement, i + 1, t);
+            }
+        } catch (IllegalAccessException e) {
+            e.printStackTrace();
+            return -1;
+        }
+        long keyId;
+        try {
+            keyId = statement.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            return insertRow(database, classInfo, t);
+        }
+        t.setPrimaryKey(keyId);
+        updateRow(database, classInfo, t, keyId);
+        return keyId;
+    }
+
+    /**
+     * 延迟插入或者更新，实体放入延迟写入队列后立即返回，由后台线程攒批提交，队列满时阻塞等待
+     * 需要先通过{@link DBBuilder#setWriteBehind(int, long, int)}开启；入队后提交前不要再修改实体
+     * 在{@link #runInTransaction(TransactionCallback)}中调用时直接写入并加入当前事务，不放入队列，
+     * 避免后台线程等待写锁而队列已满时互相等待
+     *
+     * @param t
+     * @param <T>
+     * @return 已shutdown或等待时被中断返回false
+     */
+    public <T extends IDColumn> boolean insertOrUpdateLater(T t) {
+        if (writeBehindQueue == null) {
+            throw new IllegalStateException("没有开启延迟写入，请调用DBBuilder.setWriteBehind！");
+        }
+        if (t == null) {
+            return false;
+        }
+        if (inTransaction()) {
+            insertOrUpdate(t);
+            return true;
+        }
+        return writeBehindQueue.offer(t);
+    }
+
+    /**
+     * 立即提交延迟写入队列中已有的实体，阻塞到提交完成，没有开启延迟写入时什么也不做
+     *
+     * @throws IllegalStateException 在{@link #runInTransaction(TransactionCallback)}中调用，
+     *                               或者上次flush之后有实体写入失败，失败的实体见{@link DBBuilder#setOnWriteFailure(OnWriteFailureListener)}
+     */
+    public void flush() {
+        if (writeBehindQueue != null) {
+            writeBehindQueue.flush();
+        }
+    }
+
+    /**
+     * 插入或者更新集合，主键小于等于0并且实体类声明了唯一索引时按唯一索引去重
+     *
+     * @param list
+     * @param <T>
+     */
+    public synchronized <T extends IDColumn> void insertOrUpdate(List<T> list) {
+        if (isEmpty(list)) {
+            return;
+        }
+        ClassInfo<T> classInfo = getClassInfo(list.get(0));
+        FieldCodec[] uniqueKey = classInfo.getUniqueKey();
+        SQLiteDatabase database = beginBatch();
+        try {
+            for (T t : list) {
+                long keyId = t.getPrimaryKey();
+                if (keyId > 0) {
+                    updateRow(database, classInfo, t, keyId);
+                } else if (uniqueKey != null) {
+                    upsertRow(database, classInfo, t, uniqueKey);
+                } else {
+                    insertRow(database, classInfo, t);
+                }
+            }
+            setTransactionSuccessful(database);
+        } finally {
+            endBatch(database);
+        }
+    }
+
+    /**
+     * 使用预编译插入语句插入一行，并把主键设置回实体
+     * 与SQLiteDatabase.insert一致：违反约束（如唯一索引冲突）时只跳过这一行，主键设置为-1并返回-1，事务继续
+     *
+     * @param database
+     * @param classInfo
+     * @param t
+     * @param <T>
+     * @return
+     */
+    private <T extends IDColumn> long insertRow(SQLiteDatabase database, ClassInfo<T> classInfo, T t) {
+        SQLiteStatement statement = getStatement(database, classInfo.getInsertSql());
+        if (!classInfo.bindInsert(statement, t)) {
+            return -1;
+        }
+        long id;
+        try {
+            id = statement.executeInsert();
+        } catch (SQLiteConstraintException e) {
+            e.printStackTrace();
+            t.setPrimaryKey(-1);
+            return -1;
+        }
+        t.setPrimaryKey(id);
+        deferSnapshot(classInfo, t);
+        invalidateQueries(classInfo.getTableName());
+        return id;
+    }
+
+    /**
+     * 使用预编译更新语句根据主键更新一行
+     * executeUpdateDelete需要Build.VERSION_CODES.HONEYCOMB以上版本，低版本使用ContentValues
+     * 开启修改跟踪时只更新修改过的字段，没有修改时不执行UPDATE并返回0
+     *
+     * @param database
+     * @param classInfo
+     * @param t
+     * @param keyId
+     * @param <T>
+     * @return
+     */
+    private <T extends IDColumn> int updateRow(SQLiteDatabase database, ClassInfo<T> classInfo, T t, long keyId) {
+        evictCache(t.getClass(), keyId);
+        BitSet changed = classInfo.getChangedColumns(t, keyId);
+        if (changed != null && changed.isEmpty()) {
+            return 0;
+        }
+        int row;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            ContentValues values = classInfo.getContentValues(t);
+            if (values == null) {
+                return -1;
+            }
+            if (changed != null) {
+                classInfo.retainChanged(values, changed);
+                if (values.size() == 0) {
+                    return 0;
+                }
+            }
+            row = database.update(classInfo.getTableName(), values, IDColumn.PRIMARY_KEY + "=?", new String[]{String.valueOf(keyId)});
+        } else if (changed == null) {
+            SQLiteStatement statement = getStatement(database, classInfo.getUpdateSql());
+            if (!classInfo.bindUpdate(statement, t, keyId)) {
+                return -1;
+            }
+            row = statement.executeUpdateDelete();
+        } else {
+            SQLiteStatement statement = getStatement(database, classInfo.getUpdateSql(changed));
+            if (!classInfo.bindUpdate(statement, t, keyId, changed)) {
+                return -1;
+            }
+            row = statement.executeUpdateDelete();
+        }
+        if (keyId == t.getPrimaryKey()) {
+            deferSnapshot(classInfo, t);
+        }
+        return row;
+    }
+
+    /**
+     * 记录写入时的字段值，提交后由{@link #finishTransaction(boolean)}设置到实体
+     *
+     * @param classInfo
+     * @param t
+     * @param <T>
+     */
+    private <T extends IDColumn> void deferSnapshot(ClassInfo<T> classInfo, T t) {
+        if (classInfo.isDirtyTracking()) {
+            pendingSnapshots.add(new PendingSnapshot(t, classInfo.createSnapshot(t), t.getPrimaryKey()));
+        }
+    }
+
+    /**
+     * 最外层写事务开始后调用
+     */
+    private void startTransaction() {
+        pendingSnapshots.clear();
+        blobStore.beginWrite();
+    }
+
+    /**
+     * 最外层写事务结束后调用
+     *
+     * @param committed 是否已提交
+     */
+    private void finishTransaction(boolean committed) {
+        if (committed) {
+            for (PendingSnapshot pending : pendingSnapshots) {
+                ClassInfo.setSnapshot(pending.entity, pending.values, pending.keyId);
+            }
+        }
+        pendingSnapshots.clear();
+        blobStore.endWrite(committed);
+    }
+
+    /**
+     * 获取预编译语句，同一个数据库连接内相同SQL只编译一次
+     *
+     * @param database
+     * @param sql
+     * @return
+     */
+    private SQLiteStatement getStatement(SQLiteDatabase database, String sql) {
+        synchronized (connectionLock) {
+            if (statementDatabase != database) {
+                closeStatements();
+                statementDatabase = database;
+            }
+            SQLiteStatement statement = statements.get(sql);
+            if (statement == null) {
+                statement = database.compileStatement(sql);
+                statements.put(sql, statement);
+            }
+            return statement;
+        }
+    }
+
+    private void closeStatements() {
+        synchronized (connectionLock) {
+            for (SQLiteStatement statement : statements.values()) {
+                statement.close();
+            }
+            statements.clear();
+            statementDatabase = null;
+        }
+    }
+
+    /**
+     * 执行原生sql
+     *
+     * @param sql
+     */
+    public synchronized void execSQL(String... sql) {
+        SQLiteDatabase database = beginBatch();
+        try {
+            for (String s : sql) {
+                database.execSQL(s);
+            }
+            clearCaches();
+            setTransactionSuccessful(database);
+        } finally {
+            endBatch(database);
+        }
+    }
+
+    /**
+     * 在一个事务中执行多个数据库操作，只提交一次
+     * callback中调用的insert/update/delete等方法加入此事务，insert(List)等多行写操作失败时只回滚本次调用写入的行；
+     * 嵌套调用时内层使用SAVEPOINT，
+     * 内层抛出异常只回滚内层的修改，外层捕获异常后可以继续执行并提交
+     * 系统无法只回滚SAVEPOINT时（见{@link #isNestedRollbackSupported()}），内层失败后整个事务回滚，
+     * 外层callback正常返回时抛出IllegalStateException
+     * 执行期间占用写锁，其它线程的写操作需要等待，查询不受影响
+     *
+     * @param callback
+     * @param <R>
+     * @return callback的返回值
+     * @throws IllegalStateException 不支持SAVEPOINT回滚并且有内层事务失败
+     */
+    public <R> R runInTransaction(TransactionCallback<R> callback) {
+        if (callback == null) {
+            throw new NullPointerException("TransactionCallback不能为NULL！");
+        }
+        synchronized (this) {
+            int[] depth = transactionDepth.get();
+            SQLiteDatabase database = getDatabase();
+            try {
+                boolean outermost = depth[0] == 0;
+                String savepoint = null;
+                int pendingMark = pendingSnapshots.size();
+                int blobMark = blobStore.mark();
+                if (outermost) {
+                    database.beginTransaction();
+                    rollbackOnly = false;
+                    startTransaction();
+                    beginCacheWrite();
+                } else if (SAVEPOINT_ROLLBACK_SUPPORTED) {
+                    savepoint = "cube_savepoint_" + depth[0];
+                    database.execSQL("SAVEPOINT " + savepoint);
+                }
+                depth[0]++;
+                boolean successful = false;
+                try {
+                    R result = callback.doInTransaction(this);
+                    if (outermost && rollbackOnly) {
+                        throw new IllegalStateException("嵌套事务失败，系统不支持回滚到SAVEPOINT，整个事务已回滚！");
+                    }
+                    successful = true;
+                    return result;
+                } finally {
+                    depth[0]--;
+                    if (outermost) {
+                        if (successful) {
+                            database.setTransactionSuccessful();
+                        }
+                        boolean committed = false;
+                        try {
+                            database.endTransaction();
+                            committed = successful;
+                        } finally {
+                            try {
+                                finishTransaction(committed);
+                            } finally {
+                                endCacheWrite();
+                            }
+                        }
+                    } else if (savepoint != null) {
+                        if (!successful) {
+                            database.execSQL(ROLLBACK_TO_SAVEPOINT + savepoint);
+                            //只丢弃内层写入的快照和文件
+                            pendingSnapshots.subList(pendingMark, pendingSnapshots.size()).clear();
+                            blobStore.rollback(blobMark);
+                        }
+                        database.execSQL("RELEASE " + savepoint);
+                    } else if (!successful) {
+                        rollbackOnly = true;
+                    }
+                }
+            } finally {
+                close(database);
+            }
+        }
+    }
+
+    /**
+     * 嵌套的{@link #runInTransaction(TransactionCallback)}失败时能否只回滚内层修改
+     *
+     * @return false时内层失败会导致整个事务回滚
+     */
+    public static boolean isNestedRollbackSupported() {
+        return SAVEPOINT_ROLLBACK_SUPPORTED;
+    }
+
+    /**
+     * 当前线程是否在{@link #runInTransaction(TransactionCallback)}中
+     *
+     * @return
+     */
+    public boolean inTransaction() {
+        return transactionDepth.get()[0] > 0;
+    }
+
+    /**
+     * 更具条件删除数据库内容
      *
      * @param clazz
      * @param where
@@ -422,14 +1244,7 @@ public class DBProxy {
      * @return
      */
     public synchronized int delete(Class<?> clazz, String where, String... args) {
-        String table = ClassInfo.conversionClassNameToTableName(clazz.getName());
-        SQLiteDatabase database = getDatabase();
-        database.beginTransaction();
-        int row = database.delete(table, where, args);
-        database.setTransactionSuccessful();
-        database.endTransaction();
-        close(database);
-        return row;
+        return deleteRows(clazz, -1, where, args);
     }
 
     /**
@@ -440,7 +1255,65 @@ public class DBProxy {
      * @return
      */
     public synchronized int delete(Class<?> clazz, long keyId) {
-        return delete(clazz, IDColumn.PRIMARY_KEY + "=" + keyId);
+        return deleteRows(clazz, keyId, IDColumn.PRIMARY_KEY + "=?", String.valueOf(keyId));
+    }
+
+    /**
+     * 根据主键批量删除，在一个事务中执行，主键按SQLite参数个数上限分批放入IN条件
+     *
+     * @param clazz
+     * @param ids
+     * @return 删除的行数
+     */
+    public synchronized int delete(Class<?> clazz, long... ids) {
+        if (ids == null || ids.length == 0) {
+            return 0;
+        }
+        String table = ClassInfo.conversionClassNameToTableName(clazz.getName());
+        int row = 0;
+        SQLiteDatabase database = beginBatch();
+        try {
+            for (int start = 0; start < ids.length; start += MAX_VARIABLES) {
+                int count = Math.min(MAX_VARIABLES, ids.length - start);
+                String[] args = new String[count];
+                for (int i = 0; i < count; i++) {
+                    args[i] = String.valueOf(ids[start + i]);
+                    evictCache(clazz, ids[start + i]);
+                }
+                row += database.delete(table, getKeyInSelection(count), args);
+            }
+            setTransactionSuccessful(database);
+        } finally {
+            endBatch(database);
+        }
+        return row;
+    }
+
+    /**
+     * 在写事务中删除并移除实体缓存
+     *
+     * @param clazz
+     * @param keyId 按主键删除时的主键，按条件删除时为-1，移除整个实体类的缓存
+     * @param where
+     * @param args
+     * @return
+     */
+    private int deleteRows(Class<?> clazz, long keyId, String where, String... args) {
+        String table = ClassInfo.conversionClassNameToTableName(clazz.getName());
+        int row;
+        SQLiteDatabase database = beginTransaction();
+        try {
+            row = database.delete(table, where, args);
+            if (keyId > 0) {
+                evictCache(clazz, keyId);
+            } else {
+                evictCache(clazz);
+            }
+            setTransactionSuccessful(database);
+        } finally {
+            endTransaction(database);
+        }
+        return row;
     }
 
     /**
@@ -453,6 +1326,22 @@ public class DBProxy {
      * @return
      */
     public <T extends IDColumn> long queryCount(Class<T> clazz, String where, String... args) {
+        QueryCache cache = getQueryCache(clazz);
+        if (cache == null) {
+            return queryCountFromDatabase(clazz, where, args);
+        }
+        QueryCache.Key key = new QueryCache.Key("queryCount", clazz, where, args);
+        Long cached = (Long) cache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        long version = cache.getVersion();
+        long count = queryCountFromDatabase(clazz, where, args);
+        cache.put(key, getCacheTables(getClassInfo(clazz).getTableName(), where), count, 1, version);
+        return count;
+    }
+
+    private <T extends IDColumn> long queryCountFromDatabase(Class<T> clazz, String where, String... args) {
         SQLiteDatabase database = getDatabase();
         ClassInfo<T> classInfo = getClassInfo(clazz);
         StringBuilder sql = new StringBuilder("SELECT COUNT(").append(IDColumn.PRIMARY_KEY).append(") AS count FROM ");
@@ -466,156 +1355,850 @@ public class DBProxy {
         if (cursor.moveToNext()) {
             count = cursor.getLong(0);
         }
-        close(cursor);
-        close(database);
-        return count;
+        close(cursor);
+        close(database);
+        return count;
+    }
+
+    /**
+     * 查询主键
+     *
+     * @param clazz
+     * @param where
+     * @param args
+     * @param <T>
+     * @return
+     */
+    public <T extends IDColumn> long queryPrimaryKey(Class<T> clazz, String where, String... args) {
+        if (where == null) {
+            throw new NullPointerException("缺少WHERE条件语句！");
+        }
+        ClassInfo<T> classInfo = getClassInfo(clazz);
+        SQLiteDatabase database = getDatabase();
+        StringBuilder sql = new StringBuilder("SELECT ").append(IDColumn.PRIMARY_KEY).append(" FROM ").append(classInfo.getTableName()).append(" WHERE ").append(where);
+        Cursor cursor = database.rawQuery(sql.toString(), args);
+        long id = -1;
+        if (cursor.moveToNext()) {
+            id = cursor.getLong(0);
+        }
+        close(cursor);
+        close(database);
+        return id;
+    }
+
+    /**
+     * 查询满足条件的全部主键
+     *
+     * @param clazz
+     * @param where 为null时查询全部
+     * @param args
+     * @param <T>
+     * @return
+     */
+    public <T extends IDColumn> long[] queryPrimaryKeys(Class<T> clazz, String where, String... args) {
+        ClassInfo<T> classInfo = getClassInfo(clazz);
+        StringBuilder sql = new StringBuilder("SELECT ").append(IDColumn.PRIMARY_KEY).append(" FROM ").append(classInfo.getTableName());
+        if (where != null && where.trim().length() > 0) {
+            sql.append(" WHERE ").append(where);
+        }
+        return queryLongs(sql.toString(), args);
+    }
+
+    /**
+     * 查询结果第一列的全部值，直接从Cursor读取到long数组，NULL读取为0
+     *
+     * @param sql
+     * @param args
+     * @return
+     */
+    public long[] queryLongs(String sql, String... args) {
+        SQLiteDatabase database = getDatabase();
+        Cursor cursor = null;
+        try {
+            cursor = database.rawQuery(sql, args);
+            long[] values = new long[INITIAL_ARRAY_SIZE];
+            int size = 0;
+            while (cursor.moveToNext()) {
+                if (size == values.length) {
+                    long[] grown = new long[values.length * 2];
+                    System.arraycopy(values, 0, grown, 0, size);
+                    values = grown;
+                }
+                values[size++] = cursor.getLong(0);
+            }
+            if (size == values.length) {
+                return values;
+            }
+            long[] result = new long[size];
+            System.arraycopy(values, 0, result, 0, size);
+            return result;
+        } finally {
+            close(cursor);
+            close(database);
+        }
+    }
+
+    /**
+     * 查询结果第一列的全部值，直接从Cursor读取到double数组，NULL读取为0
+     *
+     * @param sql
+     * @param args
+     * @return
+     */
+    public double[] queryDoubles(String sql, String... args) {
+        SQLiteDatabase database = getDatabase();
+        Cursor cursor = null;
+        try {
+            cursor = database.rawQuery(sql, args);
+            double[] values = new double[INITIAL_ARRAY_SIZE];
+            int size = 0;
+            while (cursor.moveToNext()) {
+                if (size == values.length) {
+                    double[] grown = new double[values.length * 2];
+                    System.arraycopy(values, 0, grown, 0, size);
+                    values = grown;
+                }
+                values[size++] = cursor.getDouble(0);
+            }
+            if (size == values.length) {
+                return values;
+            }
+            double[] result = new double[size];
+            System.arraycopy(values, 0, result, 0, size);
+            return result;
+        } finally {
+            close(cursor);
+            close(database);
+        }
+    }
+
+    /**
+     * 查询结果第一列的全部值到String数组，NULL读取为null
+     *
+     * @param sql
+     * @param args
+     * @return
+     */
+    public String[] queryStrings(String sql, String... args) {
+        SQLiteDatabase database = getDatabase();
+        Cursor cursor = null;
+        try {
+            cursor = database.rawQuery(sql, args);
+            String[] values = new String[INITIAL_ARRAY_SIZE];
+            int size = 0;
+            while (cursor.moveToNext()) {
+                if (size == values.length) {
+                    String[] grown = new String[values.length * 2];
+                    System.arraycopy(values, 0, grown, 0, size);
+                    values = grown;
+                }
+                values[size++] = cursor.getString(0);
+            }
+            if (size == values.length) {
+                return values;
+            }
+            String[] result = new String[size];
+            System.arraycopy(values, 0, result, 0, size);
+            return result;
+        } finally {
+            close(cursor);
+            close(database);
+        }
+    }
+
+    /**
+     * 根据条件查询一条记录到实体
+     *
+     * @param clazz
+     * @param where
+     * @param args
+     * @param <T>
+     * @return
+     */
+    public <T extends IDColumn> T query(Class<T> clazz, String where, String... args) {
+        SQLiteDatabase database = getDatabase();
+        ClassInfo<T> classInfo = getClassInfo(clazz);
+        Cursor cursor = database.query(classInfo.getTableName(), null, where, args, null, null, null);
+        T t = classInfo.getInstanceObject(cursor);
+        close(cursor);
+        close(database);
+        return t;
+    }
+
+    /**
+     * 根据主键查询部分字段到实体，结果不放入实体缓存
+     *
+     * @param clazz
+     * @param columns 数据库字段名或者Java字段名，主键总是会查询；为null时查询全部字段
+     * @param keyId
+     * @param <T>
+     * @return
+     * @see #queryList(Class, String[], String, String[], String, String, String, String)
+     */
+    public <T extends IDColumn> T query(Class<T> clazz, String[] columns, long keyId) {
+        if (columns == null) {
+            return query(clazz, keyId);
+        }
+        List<T> list = queryList(clazz, columns, IDColumn.PRIMARY_KEY + "=?", new String[]{String.valueOf(keyId)}, null, null, null, "1");
+        return list.isEmpty() ? null : list.get(0);
+    }
+
+    /**
+     * 创建链式查询，条件值全部使用?占位符绑定
+     * <pre>
+     * List&lt;User&gt; list = db.from(User.class).where("age", "&gt;", 18).orderBy("age", true).limit(20).list();
+     * </pre>
+     *
+     * @param clazz
+     * @param <T>
+     * @return
+     */
+    public <T extends IDColumn> Query<T> from(Class<T> clazz) {
+        if (clazz == null) {
+            throw new NullPointerException("Class不能为NULL！");
+        }
+        return new Query<T>(this, clazz);
+    }
+
+    /**
+     * 根据主键查询实体
+     *
+     * @param clazz
+     * @param keyId
+     * @param <T>
+     * @return
+     */
+    public <T extends IDColumn> T query(Class<T> clazz, long keyId) {
+        EntityCache cache = entityCache;
+        if (cache == null) {
+            return from(clazz).whereKey(keyId).first();
+        }
+        T t = cache.get(clazz, keyId);
+        if (t == null) {
+            long version = cache.getVersion();
+            t = from(clazz).whereKey(keyId).first();
+            if (t != null) {
+                cache.put(clazz, keyId, t, version);
+            }
+        }
+        return t;
+    }
+
+    /**
+     * 根据主键批量查询，主键按SQLite参数个数上限分批放入IN条件，开启实体缓存时先从缓存读取
+     *
+     * @param clazz
+     * @param ids
+     * @param <T>
+     * @return 主键到实体的Map，不存在的主键不在Map中
+     */
+    public <T extends IDColumn> Map<Long, T> queryByIds(Class<T> clazz, long... ids) {
+        if (ids == null || ids.length == 0) {
+            return new HashMap<Long, T>();
+        }
+        Map<Long, T> map = new HashMap<Long, T>(ids.length * 4 / 3 + 1);
+        EntityCache cache = entityCache;
+        long[] missing = ids;
+        int missingCount = ids.length;
+        long version = 0;
+        if (cache != null) {
+            missing = new long[ids.length];
+            missingCount = 0;
+            for (long id : ids) {
+                T t = cache.get(clazz, id);
+                if (t != null) {
+                    map.put(id, t);
+                } else {
+                    missing[missingCount++] = id;
+                }
+            }
+            if (missingCount == 0) {
+                return map;
+            }
+            version = cache.getVersion();
+        }
+        ClassInfo<T> classInfo = getClassInfo(clazz);
+        SQLiteDatabase database = getDatabase();
+        try {
+            for (int start = 0; start < missingCount; start += MAX_VARIABLES) {
+                int count = Math.min(MAX_VARIABLES, missingCount - start);
+                String[] args = new String[count];
+                for (int i = 0; i < count; i++) {
+                    args[i] = String.valueOf(missing[start + i]);
+                }
+                Cursor cursor = database.query(classInfo.getTableName(), null, getKeyInSelection(count), args, null, null, null);
+                try {
+                    for (T t : classInfo.getInstanceList(cursor)) {
+                        map.put(t.getPrimaryKey(), t);
+                        if (cache != null) {
+                            cache.put(clazz, t.getPrimaryKey(), t, version);
+                        }
+                    }
+                } finally {
+                    close(cursor);
+                }
+            }
+        } finally {
+            close(database);
+        }
+        return map;
+    }
+
+    /**
+     * _primary_key IN (?, ?, ...)
+     *
+     * @param count
+     * @return
+     */
+    private String getKeyInSelection(int count) {
+        StringBuilder selection = new StringBuilder(IDColumn.PRIMARY_KEY.length() + 8 + count * 3);
+        selection.append(IDColumn.PRIMARY_KEY).append(" IN (");
+        for (int i = 0; i < count; i++) {
+            selection.append(i == 0 ? "?" : ", ?");
+        }
+        return selection.append(')').toString();
+    }
+
+    /**
+     * 实体缓存命中次数，没有开启实体缓存时返回0
+     *
+     * @return
+     */
+    public long getEntityCacheHitCount() {
+        return entityCache == null ? 0 : entityCache.getHitCount();
+    }
+
+    /**
+     * 实体缓存未命中次数，没有开启实体缓存时返回0
+     *
+     * @return
+     */
+    public long getEntityCacheMissCount() {
+        return entityCache == null ? 0 : entityCache.getMissCount();
+    }
+
+    /**
+     * 清空实体缓存，在DBProxy之外修改了数据库时调用
+     */
+    public void clearEntityCache() {
+        if (entityCache != null) {
+            entityCache.clear();
+        }
+    }
+
+    /**
+     * 查询结果缓存命中次数，没有开启查询结果缓存时返回0
+     *
+     * @return
+     */
+    public long getQueryCacheHitCount() {
+        return queryCache == null ? 0 : queryCache.getHitCount();
+    }
+
+    /**
+     * 查询结果缓存未命中次数，没有开启查询结果缓存时返回0
+     *
+     * @return
+     */
+    public long getQueryCacheMissCount() {
+        return queryCache == null ? 0 : queryCache.getMissCount();
+    }
+
+    /**
+     * 清空查询结果缓存，在DBProxy之外修改了数据库时调用
+     */
+    public void clearQueryCache() {
+        if (queryCache != null) {
+            queryCache.clear();
+        }
+    }
+
+    private void evictCache(Class<?> clazz, long keyId) {
+        if (entityCache != null) {
+            entityCache.remove(clazz, keyId);
+        }
+        if (queryCache != null) {
+            queryCache.invalidate(ClassInfo.conversionClassNameToTableName(clazz.getName()));
+        }
+    }
+
+    private void evictCache(Class<?> clazz) {
+        if (entityCache != null) {
+            entityCache.remove(clazz);
+        }
+        if (queryCache != null) {
+            queryCache.invalidate(ClassInfo.conversionClassNameToTableName(clazz.getName()));
+        }
+    }
+
+    private void invalidateQueries(String table) {
+        if (queryCache != null) {
+            queryCache.invalidate(table);
+        }
+    }
+
+    /**
+     * 查询结果涉及的表：本表，以及条件中通过子查询引用的其它表，条件按小写文本在移除时匹配表名
+     *
+     * @param table
+     * @param clauses selection、having等，可以为null
+     * @return
+     */
+    private static String getCacheTables(String table, String... clauses) {
+        StringBuilder tables = new StringBuilder(table);
+        for (String clause : clauses) {
+            if (clause != null) {
+                tables.append(' ').append(clause.toLowerCase(Locale.US));
+            }
+        }
+        return tables.toString();
+    }
+
+    private void clearCaches() {
+        if (entityCache != null) {
+            entityCache.clear();
+        }
+        if (queryCache != null) {
+            queryCache.clear();
+        }
+    }
+
+    /**
+     * 最外层写事务开始后调用，写事务期间的查询结果不放入缓存
+     */
+    private void beginCacheWrite() {
+        if (entityCache != null) {
+            entityCache.beginWrite();
+        }
+        if (queryCache != null) {
+            queryCache.beginWrite();
+        }
+    }
+
+    /**
+     * 最外层写事务提交或者回滚后调用
+     */
+    private void endCacheWrite() {
+        if (entityCache != null) {
+            entityCache.endWrite();
+        }
+        if (queryCache != null) {
+            queryCache.endWrite();
+        }
+    }
+
+    /**
+     * 实体类开启了查询结果缓存时返回缓存，否则返回null
+     *
+     * @param clazz
+     * @return
+     */
+    private QueryCache getQueryCache(Class<?> clazz) {
+        QueryCache cache = queryCache;
+        return cache != null && cache.isCached(clazz) ? cache : null;
+    }
+
+    /**
+     * 根据sql语句查询实体
+     *
+     * @param clazz
+     * @param sql
+     * @param args
+     * @param <T>
+     * @return
+     */
+    public <T extends IDColumn> T querySql(Class<T> clazz, String sql, String... args) {
+        SQLiteDatabase database = getDatabase();
+        Cursor cursor = database.rawQuery(sql, args);
+        ClassInfo<T> classInfo = getClassInfo(clazz);
+        T t = classInfo.getInstanceObject(cursor);
+        close(cursor);
+        close(database);
+        return t;
+    }
+
+    /**
+     * 根据sql语句查询实体集合
+     *
+     * @param clazz
+     * @param sql
+     * @param args
+     * @param <T>
+     * @return
+     */
+    public <T extends IDColumn> List<T> querySqlList(Class<T> clazz, String sql, String... args) {
+        QueryCache cache = getQueryCache(clazz);
+        QueryCache.Key key = null;
+        long version = 0;
+        if (cache != null) {
+            key = new QueryCache.Key("querySqlList", clazz, sql, args);
+            List<T> cached = (List<T>) cache.get(key);
+            if (cached != null) {
+                return new ArrayList<T>(cached);
+            }
+            version = cache.getVersion();
+        }
+        SQLiteDatabase database = getDatabase();
+        Cursor cursor = database.rawQuery(sql, args);
+        ClassInfo<T> classInfo = getClassInfo(clazz);
+        List<T> list = classInfo.getInstanceList(cursor);
+        close(cursor);
+        close(database);
+        if (cache != null) {
+            //raw sql可能涉及多个表，按sql文本匹配表名移除
+            cache.put(key, sql.toLowerCase(Locale.US), new ArrayList<T>(list), list.size(), version);
+        }
+        return list;
+    }
+
+    /**
+     * 更具条件插叙实体集合
+     *
+     * @param clazz
+     * @param selection
+     * @param selectionArgs
+     * @param groupBy
+     * @param having
+     * @param orderBy
+     * @param limit
+     * @param <T>
+     * @return
+     */
+    public <T extends IDColumn> List<T> queryList(Class<T> clazz, String selection, String[] selectionArgs, String groupBy, String having, String orderBy, String limit) {
+        return queryList(clazz, null, selection, selectionArgs, groupBy, having, orderBy, limit);
+    }
+
+    /**
+     * 查询部分字段到实体集合，没有查询的字段保持实体的默认值，大字段不进入CursorWindow
+     * 没有开启修改跟踪时，这样的实体不要直接用于update
+     *
+     * @param clazz
+     * @param columns       数据库字段名或者Java字段名，主键总是会查询；为null时查询全部字段
+     * @param selection
+     * @param selectionArgs
+     * @param groupBy
+     * @param having
+     * @param orderBy
+     * @param limit
+     * @param <T>
+     * @return
+     */
+    public <T extends IDColumn> List<T> queryList(Class<T> clazz, String[] columns, String selection, String[] selectionArgs, String groupBy, String having, String orderBy, String limit) {
+        ClassInfo<T> classInfo = getClassInfo(clazz);
+        columns = classInfo.getProjection(columns);
+        QueryCache cache = getQueryCache(clazz);
+        QueryCache.Key key = null;
+        long version = 0;
+        if (cache != null) {
+            key = new QueryCache.Key("queryList", clazz, columns, selection, selectionArgs, groupBy, having, orderBy, limit);
+            List<T> cached = (List<T>) cache.get(key);
+            if (cached != null) {
+                return new ArrayList<T>(cached);
+            }
+            version = cache.getVersion();
+        }
+        SQLiteDatabase database = getDatabase();
+        Cursor cursor = database.query(classInfo.getTableName(), columns, selection, selectionArgs, groupBy, having, orderBy, limit);
+        List<T> list = classInfo.getInstanceList(cursor);
+        close(cursor);
+        close(database);
+        if (cache != null) {
+            cache.put(key, getCacheTables(classInfo.getTableName(), selection, groupBy, having, orderBy), new ArrayList<T>(list), list.size(), version);
+        }
+        return list;
+    }
+
+    /**
+     * 分页查询实体集合
+     *
+     * @param clazz
+     * @param selection
+     * @param pageNumber
+     * @param pageSize
+     * @param selectionArgs
+     * @param <T>
+     * @return
+     */
+    public <T extends IDColumn> List<T> queryList(Class<T> clazz, String selection, int pageNumber, int pageSize, String... selectionArgs) {
+        int startPosition = ((pageNumber - 1) * pageSize);
+        return queryList(clazz, selection, selectionArgs, null, null, null, startPosition + "," + pageSize);
+    }
+
+    /**
+     * 根据条件查询实体集合
+     *
+     * @param clazz
+     * @param selection
+     * @param selectionArgs
+     * @param <T>
+     * @return
+     */
+    public <T extends IDColumn> List<T> queryList(Class<T> clazz, String selection, String... selectionArgs) {
+        return queryList(clazz, selection, selectionArgs, null, null, null, null);
+    }
+
+    /**
+     * 按主键升序游标分页查询，适合深度翻页
+     *
+     * @param clazz
+     * @param selection
+     * @param pageSize
+     * @param token         上一页的{@link Page#getNextToken()}，查询第一页时为null
+     * @param selectionArgs
+     * @param <T>
+     * @return
+     * @see #queryPage(Class, String, String, boolean, int, String, String...)
+     */
+    public <T extends IDColumn> Page<T> queryPage(Class<T> clazz, String selection, int pageSize, String token, String... selectionArgs) {
+        return queryPage(clazz, selection, IDColumn.PRIMARY_KEY, false, pageSize, token, selectionArgs);
+    }
+
+    /**
+     * 游标分页查询，按orderColumn和主键排序，下一页从上一页最后一行之后继续查询（WHERE key > ? ORDER BY key LIMIT n）
+     * 不使用OFFSET，每一页的查询代价与第一页相同；orderColumn上有索引时效果最好
+     *
+     * @param clazz
+     * @param selection
+     * @param orderColumn   排序的数据库字段名或者Java字段名，为null时按主键排序
+     * @param descending    是否降序
+     * @param pageSize
+     * @param token         上一页的{@link Page#getNextToken()}，查询第一页时为null
+     * @param selectionArgs
+     * @param <T>
+     * @return
+     * @throws IllegalArgumentException orderColumn不是本表字段或者token与本次查询的排序方式不一致
+     */
+    public <T extends IDColumn> Page<T> queryPage(Class<T> clazz, String selection, String orderColumn, boolean descending, int pageSize, String token, String... selectionArgs) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("pageSize必须大于0！");
+        }
+        ClassInfo<T> classInfo = getClassInfo(clazz);
+        //与Query相同，Java字段名转换为数据库字段名，令牌中保存数据库字段名
+        String column = orderColumn == null ? IDColumn.PRIMARY_KEY : classInfo.getColumnName(orderColumn);
+        if (column == null) {
+            throw new IllegalArgumentException(orderColumn + "不是" + classInfo.getTableName() + "的字段！");
+        }
+        FieldCodec codec = classInfo.getCodec(column);
+        boolean byKey = IDColumn.PRIMARY_KEY.equals(column);
+        String op = descending ? "<" : ">";
+        String direction = descending ? " DESC" : " ASC";
+        String key = "`" + IDColumn.PRIMARY_KEY + "`";
+        String sortKey = "`" + column + "`";
+        StringBuilder where = new StringBuilder();
+        List<String> args = new ArrayList<String>();
+        if (selection != null && selection.length() > 0) {
+            where.append('(').append(selection).append(')');
+            if (selectionArgs != null) {
+                args.addAll(Arrays.asList(selectionArgs));
+            }
+        }
+        if (token != null) {
+            Page.Token last = Page.Token.decode(token);
+            if (!column.equals(last.column) || descending != last.descending) {
+                throw new IllegalArgumentException("分页令牌与查询的排序方式不一致！");
+            }
+            if (where.length() > 0) {
+                where.append(" AND ");
+            }
+            if (byKey) {
+                where.append(key).append(' ').append(op).append(" ?");
+            } else if (last.value == null) {
+                //NULL升序时排在最前面，降序时排在最后面
+                where.append("(").append(sortKey).append(" IS NULL AND ").append(key).append(' ').append(op).append(" ?");
+                if (!descending) {
+                    where.append(" OR ").append(sortKey).append(" IS NOT NULL");
+                }
+                where.append(')');
+            } else {
+                //第一个条件可以使用orderColumn上的索引
+                where.append("(").append(sortKey).append(' ').append(op).append("= ? AND (")
+                        .append(sortKey).append(' ').append(op).append(" ? OR ").append(key).append(' ').append(op).append(" ?)");
+                if (descending) {
+                    where.append(" OR ").append(sortKey).append(" IS NULL");
+                }
+                where.append(')');
+                args.add(last.value);
+                args.add(last.value);
+            }
+            args.add(String.valueOf(last.keyId));
+        }
+        String orderBy = byKey ? key + direction : sortKey + direction + ", " + key + direction;
+        SQLiteDatabase database = getDatabase();
+        Cursor cursor = null;
+        try {
+            //多查一行判断是否还有下一页
+            cursor = database.query(classInfo.getTableName(), null, where.length() > 0 ? where.toString() : null,
+                    args.toArray(new String[args.size()]), null, null, orderBy, String.valueOf(pageSize + 1));
+            BindingPlan plan = classInfo.getBindingPlan(cursor);
+            int keyIndex = cursor.getColumnIndex(IDColumn.PRIMARY_KEY);
+            int sortIndex = cursor.getColumnIndex(column);
+            List<T> list = new ArrayList<T>(Math.min(pageSize, INITIAL_ARRAY_SIZE));
+            Page.Token next = null;
+            int rows = 0;
+            while (rows < pageSize && cursor.moveToNext()) {
+                rows++;
+                try {
+                    list.add(classInfo.readRow(cursor, plan));
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+                if (rows == pageSize) {
+                    next = new Page.Token(column, descending, cursor.getLong(keyIndex), byKey ? null : getSortValue(cursor, sortIndex, codec));
+                }
+            }
+            boolean hasNext = next != null && cursor.moveToNext();
+            return new Page<T>(list, hasNext ? next.encode() : null);
+        } finally {
+            close(cursor);
+            close(database);
+        }
     }
 
     /**
-     * 查询主键
+     * 读取排序字段值作为下一页的查询参数，REAL字段按double读取，避免文本转换损失精度
      *
-     * @param clazz
-     * @param where
-     * @param args
-     * @param <T>
+     * @param cursor
+     * @param index
+     * @param codec
      * @return
      */
-    public <T extends IDColumn> long queryPrimaryKey(Class<T> clazz, String where, String... args) {
-        if (where == null) {
-            throw new NullPointerException("缺少WHERE条件语句！");
+    private String getSortValue(Cursor cursor, int index, FieldCodec codec) {
+        if (cursor.isNull(index)) {
+            return null;
         }
-        ClassInfo<T> classInfo = getClassInfo(clazz);
-        SQLiteDatabase database = getDatabase();
-        StringBuilder sql = new StringBuilder("SELECT ").append(IDColumn.PRIMARY_KEY).append(" FROM ").append(classInfo.getTableName()).append(" WHERE ").append(where);
-        Cursor cursor = database.rawQuery(sql.toString(), args);
-        long id = -1;
-        if (cursor.moveToNext()) {
-            id = cursor.getLong(0);
+        if ("REAL".equals(codec.getSqlType())) {
+            return String.valueOf(cursor.getDouble(index));
         }
-        close(cursor);
-        close(database);
-        return id;
+        return cursor.getString(index);
     }
 
     /**
-     * 根据条件查询一条记录到实体
+     * 根据条件查询实体迭代器，逐行读取结果集，适用于导出等结果集很大的查询
+     * 迭代器持有数据库连接，提前结束遍历时必须调用{@link EntityIterator#close()}
      *
      * @param clazz
-     * @param where
-     * @param args
+     * @param selection
+     * @param selectionArgs
+     * @param orderBy
      * @param <T>
      * @return
      */
-    public <T extends IDColumn> T query(Class<T> clazz, String where, String... args) {
-        SQLiteDatabase database = getDatabase();
-        ClassInfo<T> classInfo = getClassInfo(clazz);
-        Cursor cursor = database.query(classInfo.getTableName(), null, where, args, null, null, null);
-        T t = classInfo.getInstanceObject(cursor);
-        close(cursor);
-        close(database);
-        return t;
+    public <T extends IDColumn> EntityIterator<T> iterate(Class<T> clazz, String selection, String[] selectionArgs, String orderBy) {
+        return iterate(clazz, null, selection, selectionArgs, orderBy, null);
     }
 
     /**
-     * 根据主键查询实体
+     * 查询部分字段的实体迭代器
      *
      * @param clazz
-     * @param keyId
+     * @param columns       数据库字段名或者Java字段名，主键总是会查询；为null时查询全部字段
+     * @param selection
+     * @param selectionArgs
+     * @param orderBy
+     * @param limit
      * @param <T>
      * @return
+     * @see #iterate(Class, String, String[], String)
      */
-    public <T extends IDColumn> T query(Class<T> clazz, long keyId) {
-        return query(clazz, IDColumn.PRIMARY_KEY + "=" + keyId);
+    public <T extends IDColumn> EntityIterator<T> iterate(Class<T> clazz, String[] columns, String selection, String[] selectionArgs, String orderBy, String limit) {
+        ClassInfo<T> classInfo = getClassInfo(clazz);
+        columns = classInfo.getProjection(columns);
+        SQLiteDatabase database = getDatabase();
+        try {
+            Cursor cursor = database.query(classInfo.getTableName(), columns, selection, selectionArgs, null, null, orderBy, limit);
+            return newIterator(database, cursor, classInfo);
+        } catch (RuntimeException e) {
+            close(database);
+            throw e;
+        }
     }
 
     /**
-     * 根据sql语句查询实体
+     * 根据条件查询实体迭代器
      *
      * @param clazz
-     * @param sql
-     * @param args
+     * @param selection
+     * @param selectionArgs
      * @param <T>
      * @return
+     * @see #iterate(Class, String, String[], String)
      */
-    public <T extends IDColumn> T querySql(Class<T> clazz, String sql, String... args) {
-        SQLiteDatabase database = getDatabase();
-        Cursor cursor = database.rawQuery(sql, args);
-        ClassInfo<T> classInfo = getClassInfo(clazz);
-        T t = classInfo.getInstanceObject(cursor);
-        close(cursor);
-        close(database);
-        return t;
+    public <T extends IDColumn> EntityIterator<T> iterate(Class<T> clazz, String selection, String... selectionArgs) {
+        return iterate(clazz, selection, selectionArgs, null);
     }
 
     /**
-     * 根据sql语句查询实体集合
+     * 根据sql语句查询实体迭代器
      *
      * @param clazz
      * @param sql
      * @param args
      * @param <T>
      * @return
+     * @see #iterate(Class, String, String[], String)
      */
-    public <T extends IDColumn> List<T> querySqlList(Class<T> clazz, String sql, String... args) {
-        SQLiteDatabase database = getDatabase();
-        Cursor cursor = database.rawQuery(sql, args);
+    public <T extends IDColumn> EntityIterator<T> iterateSql(Class<T> clazz, String sql, String... args) {
         ClassInfo<T> classInfo = getClassInfo(clazz);
-        List<T> list = classInfo.getInstanceList(cursor);
-        close(cursor);
-        close(database);
-        return list;
+        SQLiteDatabase database = getDatabase();
+        try {
+            Cursor cursor = database.rawQuery(sql, args);
+            return newIterator(database, cursor, classInfo);
+        } catch (RuntimeException e) {
+            close(database);
+            throw e;
+        }
     }
 
-    /**
-     * 更具条件插叙实体集合
-     *
-     * @param clazz
-     * @param selection
-     * @param selectionArgs
-     * @param groupBy
-     * @param having
-     * @param orderBy
-     * @param limit
-     * @param <T>
-     * @return
-     */
-    public <T extends IDColumn> List<T> queryList(Class<T> clazz, String selection, String[] selectionArgs, String groupBy, String having, String orderBy, String limit) {
-        ClassInfo<T> classInfo = getClassInfo(clazz);
-        SQLiteDatabase database = getDatabase();
-        Cursor cursor = database.query(classInfo.getTableName(), null, selection, selectionArgs, groupBy, having, orderBy, limit);
-        List<T> list = classInfo.getInstanceList(cursor);
-        close(cursor);
-        close(database);
-        return list;
+    private <T extends IDColumn> EntityIterator<T> newIterator(SQLiteDatabase database, Cursor cursor, ClassInfo<T> classInfo) {
+        try {
+            return new EntityIterator<T>(this, database, cursor, classInfo);
+        } catch (RuntimeException e) {
+            close(cursor);
+            throw e;
+        }
     }
 
     /**
-     * 分页查询实体集合
+     * 根据条件逐行遍历实体，遍历结束或visitor返回false后关闭Cursor并释放连接
      *
      * @param clazz
+     * @param visitor
      * @param selection
-     * @param pageNumber
-     * @param pageSize
      * @param selectionArgs
      * @param <T>
-     * @return
+     * @return 遍历的行数
      */
-    public <T extends IDColumn> List<T> queryList(Class<T> clazz, String selection, int pageNumber, int pageSize, String... selectionArgs) {
-        int startPosition = ((pageNumber - 1) * pageSize);
-        return queryList(clazz, selection, selectionArgs, null, null, null, startPosition + "," + pageSize);
+    public <T extends IDColumn> long forEach(Class<T> clazz, RowVisitor<T> visitor, String selection, String... selectionArgs) {
+        return visit(iterate(clazz, selection, selectionArgs, null), visitor);
     }
 
     /**
-     * 根据条件查询实体集合
+     * 根据sql语句逐行遍历实体，遍历结束或visitor返回false后关闭Cursor并释放连接
      *
      * @param clazz
-     * @param selection
-     * @param selectionArgs
+     * @param visitor
+     * @param sql
+     * @param args
      * @param <T>
-     * @return
+     * @return 遍历的行数
      */
-    public <T extends IDColumn> List<T> queryList(Class<T> clazz, String selection, String... selectionArgs) {
-        return queryList(clazz, selection, selectionArgs, null, null, null, null);
+    public <T extends IDColumn> long forEachSql(Class<T> clazz, RowVisitor<T> visitor, String sql, String... args) {
+        return visit(iterateSql(clazz, sql, args), visitor);
+    }
+
+    private <T extends IDColumn> long visit(EntityIterator<T> iterator, RowVisitor<T> visitor) {
+        long count = 0;
+        try {
+            while (iterator.hasNext()) {
+                count++;
+                if (!visitor.visit(iterator.next())) {
+                    break;
+                }
+            }
+        } finally {
+            iterator.close();
+        }
+        return count;
     }
 
     /**
@@ -667,6 +2250,179 @@ public class DBProxy {
         return list;
     }
 
+    /**
+     * 根据sql语句查询按列存储的结果，适合行数和字段都很多的统计查询
+     * 不为每行创建Map，数值不装箱，按位置读取字段
+     *
+     * @param sql
+     * @param args
+     * @return
+     */
+    public ColumnarResult queryColumnar(String sql, String... args) {
+        SQLiteDatabase database = getDatabase();
+        Cursor cursor = null;
+        try {
+            cursor = database.rawQuery(sql, args);
+            return ColumnarResult.read(cursor, Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB);
+        } finally {
+            close(cursor);
+            close(database);
+        }
+    }
+
+    /**
+     * {@link ExternalBlob}字段内容对应的文件，只读使用，不要修改文件
+     *
+     * @param t     通过DBProxy查询或者写入过的实体
+     * @param field 数据库字段名或者Java字段名
+     * @param <T>
+     * @return 字段没有内容时返回null
+     */
+    public <T extends IDColumn> File getBlobFile(T t, String field) {
+        ClassInfo<T> classInfo = getClassInfo(t);
+        String column = classInfo.getColumnName(field);
+        FieldCodec codec = column == null ? null : classInfo.getCodec(column);
+        if (!(codec instanceof FieldCodec.ExternalBlobCodec)) {
+            throw new IllegalArgumentException(field + "不是" + classInfo.getTableName() + "的@ExternalBlob字段！");
+        }
+        EntityState state = t.getState(false);
+        String ref = state == null ? null : state.getBlobRef(column);
+        return ref == null ? null : ((FieldCodec.ExternalBlobCodec) codec).getStore().getFile(ref);
+    }
+
+    /**
+     * 读取{@link ExternalBlob}字段的全部内容，查询结果中此字段为null，需要byte[]时使用此方法
+     * 内容较大时使用{@link #openBlob(IDColumn, String)}或{@link #mapBlob(IDColumn, String)}
+     *
+     * @param t     通过DBProxy查询或者写入过的实体
+     * @param field 数据库字段名或者Java字段名
+     * @param <T>
+     * @return 字段没有内容时返回null
+     * @throws IOException
+     */
+    public <T extends IDColumn> byte[] readBlob(T t, String field) throws IOException {
+        File file = getBlobFile(t, field);
+        if (file == null) {
+            return null;
+        }
+        long length = file.length();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("文件太大：" + file);
+        }
+        byte[] data = new byte[(int) length];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                int read = in.read(data, offset, data.length - offset);
+                if (read < 0) {
+                    throw new IOException("文件读取不完整：" + file);
+                }
+                offset += read;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    /**
+     * 流式读取{@link ExternalBlob}字段内容，用完必须关闭
+     *
+     * @param t
+     * @param field
+     * @param <T>
+     * @return 字段没有内容时返回null
+     * @throws IOException
+     */
+    public <T extends IDColumn> InputStream openBlob(T t, String field) throws IOException {
+        File file = getBlobFile(t, field);
+        return file == null ? null : new FileInputStream(file);
+    }
+
+    /**
+     * 以只读内存映射方式读取{@link ExternalBlob}字段内容，不复制到Java数组
+     *
+     * @param t
+     * @param field
+     * @param <T>
+     * @return 字段没有内容时返回null
+     * @throws IOException
+     */
+    public <T extends IDColumn> MappedByteBuffer mapBlob(T t, String field) throws IOException {
+        File file = getBlobFile(t, field);
+        if (file == null) {
+            return null;
+        }
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            //映射在文件关闭后仍然有效
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * 删除没有被任何{@link ExternalBlob}字段引用的文件
+     * 删除记录、替换字段内容或者事务回滚后旧文件不会立即删除（相同内容的文件可能被多行引用），
+     * 在删除或替换较多记录后、应用启动或空闲时调用，回收磁盘空间
+     * 只检查已经使用过的实体类、DBBuilder.createTable注册的类以及classes，
+     * 其它引用同一目录文件的实体类必须通过classes传入，否则它们的文件会被删除；
+     * 删除后之前查询到的实体上的引用可能失效，应重新查询
+     * 执行期间占用写锁
+     *
+     * @param classes 还没有使用过的带{@link ExternalBlob}字段的实体类
+     * @return 删除的文件数量
+     * @throws IllegalStateException 在{@link #runInTransaction(TransactionCallback)}中调用，未提交的引用无法判断
+     */
+    public synchronized int gcBlobs(Class... classes) {
+        if (inTransaction()) {
+            throw new IllegalStateException("不能在事务中回收BLOB文件！");
+        }
+        for (Class clazz : classes) {
+            getClassInfo(clazz);
+        }
+        //租用数据库时完成可能的升级迁移，写锁保证没有正在写入的文件
+        SQLiteDatabase database = getDatabase();
+        try {
+            Set<String> refs = new HashSet<String>();
+            for (ClassInfo classInfo : classInfoMap.values()) {
+                if (classInfo.hasExternalBlobs() && tableExists(database, classInfo.getTableName())) {
+                    for (Object column : classInfo.getFieldMap().keySet()) {
+                        if (classInfo.getCodec((String) column) instanceof FieldCodec.ExternalBlobCodec) {
+                            collectBlobRefs(database, classInfo.getTableName(), (String) column, refs);
+                        }
+                    }
+                }
+            }
+            return blobStore.sweep(refs);
+        } finally {
+            close(database);
+        }
+    }
+
+    private static boolean tableExists(SQLiteDatabase database, String tableName) {
+        Cursor cursor = database.rawQuery("SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = ?", new String[]{tableName});
+        try {
+            return cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void collectBlobRefs(SQLiteDatabase database, String tableName, String column, Set<String> refs) {
+        Cursor cursor = database.rawQuery("SELECT DISTINCT `" + column + "` FROM `" + tableName + "` WHERE `" + column + "` IS NOT NULL", null);
+        try {
+            while (cursor.moveToNext()) {
+                refs.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
     private void putMapKeyValue(Cursor cursor, String columnName, Map<String, Object> map) {
         int columnIndex = cursor.getColumnIndex(columnName);
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
@@ -695,23 +2451,215 @@ public class DBProxy {
         }
     }
 
-    private synchronized SQLiteDatabase getDatabase() {
-        closeIndex++;
-        if (helper != null) {
-            return helper.getReadableDatabase();
-        } else if (database != null) {
-            return database;
+    /**
+     * 租用数据库并开始写事务，已在{@link #runInTransaction(TransactionCallback)}中时加入外层事务
+     *
+     * @return
+     */
+    private SQLiteDatabase beginTransaction() {
+        SQLiteDatabase database = getDatabase();
+        if (!inTransaction()) {
+            database.beginTransaction();
+            transactionSuccessful = false;
+            startTransaction();
+            beginCacheWrite();
+        }
+        return database;
+    }
+
+    private void setTransactionSuccessful(SQLiteDatabase database) {
+        if (!inTransaction()) {
+            database.setTransactionSuccessful();
+            transactionSuccessful = true;
         } else {
-            throw new NullPointerException("SQLiteOpenHelper is null or SQLiteDatabase is null, please set the value");
+            batchSuccessful = true;
+        }
+    }
+
+    /**
+     * 多行写操作开始写事务，与{@link #endBatch(SQLiteDatabase)}配对
+     * 加入外层事务时使用SAVEPOINT，中途失败只回滚本次调用写入的行，调用方捕获异常后外层事务不会提交一半的数据；
+     * 不支持SAVEPOINT回滚时失败后整个外层事务回滚
+     *
+     * @return
+     */
+    private SQLiteDatabase beginBatch() {
+        SQLiteDatabase database = beginTransaction();
+        if (inTransaction() && batchDepth++ == 0) {
+            batchSuccessful = false;
+            batchPendingMark = pendingSnapshots.size();
+            batchBlobMark = blobStore.mark();
+            if (SAVEPOINT_ROLLBACK_SUPPORTED) {
+                //与runInTransaction的嵌套层使用相同的命名，多行写操作中不会再调用runInTransaction
+                batchSavepoint = "cube_savepoint_" + transactionDepth.get()[0];
+                try {
+                    database.execSQL("SAVEPOINT " + batchSavepoint);
+                } catch (RuntimeException e) {
+                    batchDepth--;
+                    endTransaction(database);
+                    throw e;
+                }
+            }
+        }
+        return database;
+    }
+
+    private void endBatch(SQLiteDatabase database) {
+        try {
+            if (inTransaction() && --batchDepth == 0) {
+                if (SAVEPOINT_ROLLBACK_SUPPORTED) {
+                    if (!batchSuccessful) {
+                        database.execSQL(ROLLBACK_TO_SAVEPOINT + batchSavepoint);
+                        pendingSnapshots.subList(batchPendingMark, pendingSnapshots.size()).clear();
+                        blobStore.rollback(batchBlobMark);
+                    }
+                    database.execSQL("RELEASE " + batchSavepoint);
+                } else if (!batchSuccessful) {
+                    rollbackOnly = true;
+                }
+            }
+        } finally {
+            endTransaction(database);
+        }
+    }
+
+    /**
+     * 结束写事务并归还数据库，加入外层事务时由外层提交
+     *
+     * @param database
+     */
+    private void endTransaction(SQLiteDatabase database) {
+        try {
+            if (!inTransaction()) {
+                boolean committed = false;
+                try {
+                    database.endTransaction();
+                    committed = transactionSuccessful;
+                } finally {
+                    transactionSuccessful = false;
+                    try {
+                        finishTransaction(committed);
+                    } finally {
+                        endCacheWrite();
+                    }
+                }
+            }
+        } finally {
+            close(database);
+        }
+    }
+
+    /**
+     * 租用数据库，数据库只在第一次使用或空闲关闭后打开，使用完必须调用{@link #close(SQLiteDatabase)}归还
+     *
+     * @return
+     */
+    SQLiteDatabase getDatabase() {
+        synchronized (connectionLock) {
+            if (shutdown) {
+                throw new IllegalStateException("DBProxy已经shutdown！");
+            }
+            SQLiteDatabase db;
+            if (helper != null) {
+                db = helper.getReadableDatabase();
+            } else if (database != null) {
+                db = database;
+            } else {
+                throw new NullPointerException("SQLiteOpenHelper is null or SQLiteDatabase is null, please set the value");
+            }
+            closeIndex++;
+            return db;
         }
     }
 
-    private synchronized void close(SQLiteDatabase database) {
-        closeIndex--;
-        if (closeIndex == 0) {
-            if (database != null && database != this.database && database.isOpen()) {
+    /**
+     * 归还租用的数据库，不会立即关闭数据库，设置了空闲超时则在空闲超时后关闭
+     *
+     * @param database
+     */
+    void close(SQLiteDatabase database) {
+        synchronized (connectionLock) {
+            closeIndex--;
+            if (closeIndex == 0 && shutdown) {
+                connectionLock.notifyAll();
+            } else if (closeIndex == 0 && idleTimeout > 0 && helper != null) {
+                idleSince = SystemClock.uptimeMillis();
+                scheduleIdleCheck(idleTimeout);
+            }
+        }
+    }
+
+    private void scheduleIdleCheck(long delay) {
+        if (idleCheckScheduled) {
+            return;
+        }
+        idleCheckScheduled = true;
+        idleExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (connectionLock) {
+                    idleCheckScheduled = false;
+                    if (closeIndex > 0 || shutdown) {
+                        return;
+                    }
+                    long idle = SystemClock.uptimeMillis() - idleSince;
+                    if (idle >= idleTimeout) {
+                        closeStatements();
+                        helper.close();
+                    } else {
+                        scheduleIdleCheck(idleTimeout - idle);
+                    }
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 提交延迟写入队列，关闭数据库并释放预编译语句
+     * 调用后不再租出数据库，新的读写操作抛出IllegalStateException；等待正在执行的读写操作完成、
+     * 所有{@link EntityIterator}关闭后才关闭数据库，当前线程有未关闭的EntityIterator时会一直等待
+     * 等待时被中断则不再等待，直接关闭数据库；shutdown之后此DBProxy不能再使用
+     *
+     * @throws IllegalStateException 在{@link #runInTransaction(TransactionCallback)}中调用，
+     *                               或者延迟写入队列中有实体写入失败（数据库仍然会关闭）
+     */
+    public void shutdown() {
+        if (inTransaction()) {
+            throw new IllegalStateException("不能在runInTransaction中shutdown！");
+        }
+        try {
+            if (writeBehindQueue != null) {
+                writeBehindQueue.shutdown();
+            }
+        } finally {
+            closeAll();
+        }
+    }
+
+    private void closeAll() {
+        synchronized (connectionLock) {
+            if (shutdown) {
+                return;
+            }
+            shutdown = true;
+            //写操作也持有租用计数，计数归0时没有正在执行的读写
+            while (closeIndex > 0) {
+                try {
+                    connectionLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            closeStatements();
+            if (helper != null) {
+                helper.close();
+            } else if (database != null && database.isOpen()) {
                 database.close();
             }
+            if (idleExecutor != null) {
+                idleExecutor.shutdownNow();
+            }
         }
     }
 
@@ -727,4 +2675,19 @@ public class DBProxy {
         }
         return false;
     }
+
+    /**
+     * 等待事务提交的修改跟踪快照
+     */
+    private static final class PendingSnapshot {
+        final IDColumn entity;
+        final Object[] values;
+        final long keyId;
+
+        PendingSnapshot(IDColumn entity, Object[] values, long keyId) {
+            this.entity = entity;
+            this.values = values;
+            this.keyId = keyId;
+        }
+    }
 }
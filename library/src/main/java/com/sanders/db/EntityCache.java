@@ -0,0 +1,134 @@
+package com.sanders.db;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 按(实体类, 主键)缓存实体的LRU缓存，命中时直接返回缓存的实体对象，不查询数据库
+ * 写操作按主键或者按实体类移除缓存；写事务执行期间以及查询期间有写事务开始或结束时，查询结果不放入缓存，
+ * 避免把未提交或者已被覆盖的数据放入缓存
+ * Created by sanders on 15/6/28.
+ */
+final class EntityCache {
+
+    private final LinkedHashMap<Key, IDColumn> map;
+    /**
+     * 每次写事务开始和结束时加一
+     */
+    private long version;
+    private boolean writing;
+    private long hitCount;
+    private long missCount;
+
+    EntityCache(final int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize必须大于0！");
+        }
+        this.map = new LinkedHashMap<Key, IDColumn>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, IDColumn> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    synchronized <T extends IDColumn> T get(Class<T> clazz, long keyId) {
+        IDColumn t = map.get(new Key(clazz, keyId));
+        if (t == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        return clazz.cast(t);
+    }
+
+    /**
+     * 查询数据库之前获取版本，放入缓存时版本没有变化才放入
+     *
+     * @return
+     */
+    synchronized long getVersion() {
+        return version;
+    }
+
+    synchronized void put(Class<?> clazz, long keyId, IDColumn t, long version) {
+        if (writing || this.version != version) {
+            return;
+        }
+        map.put(new Key(clazz, keyId), t);
+    }
+
+    synchronized void remove(Class<?> clazz, long keyId) {
+        map.remove(new Key(clazz, keyId));
+    }
+
+    /**
+     * 移除一个实体类的全部缓存
+     *
+     * @param clazz
+     */
+    synchronized void remove(Class<?> clazz) {
+        Iterator<Key> iterator = map.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().clazz == clazz) {
+                iterator.remove();
+            }
+        }
+    }
+
+    synchronized void clear() {
+        map.clear();
+    }
+
+    /**
+     * 最外层写事务开始
+     */
+    synchronized void beginWrite() {
+        writing = true;
+        version++;
+    }
+
+    /**
+     * 最外层写事务提交或者回滚之后
+     */
+    synchronized void endWrite() {
+        writing = false;
+        version++;
+    }
+
+    synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    synchronized long getMissCount() {
+        return missCount;
+    }
+
+    private static final class Key {
+        final Class<?> clazz;
+        final long keyId;
+
+        Key(Class<?> clazz, long keyId) {
+            this.clazz = clazz;
+            this.keyId = keyId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return keyId == key.keyId && clazz == key.clazz;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * clazz.hashCode() + (int) (keyId ^ (keyId >>> 32));
+        }
+    }
+}
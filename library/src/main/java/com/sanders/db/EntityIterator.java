@@ -0,0 +1,92 @@
+package com.sanders.db;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * 基于Cursor的实体迭代器，每次next只从Cursor读取一行创建实体，不把结果集一次读入内存
+ * 迭代器持有Cursor和数据库连接，遍历完成后自动关闭，提前结束遍历时必须调用{@link #close()}
+ * Created by sanders on 15/6/26.
+ *
+ * @param <T>
+ */
+public final class EntityIterator<T extends IDColumn> implements Iterator<T>, Closeable {
+
+    private final DBProxy proxy;
+    private final SQLiteDatabase database;
+    private final Cursor cursor;
+    private final ClassInfo<T> classInfo;
+    private final BindingPlan plan;
+    /**
+     * Cursor是否已经移动到下一行且还没有被next读取
+     */
+    private boolean hasRow;
+    private boolean closed;
+
+    EntityIterator(DBProxy proxy, SQLiteDatabase database, Cursor cursor, ClassInfo<T> classInfo) {
+        this.proxy = proxy;
+        this.database = database;
+        this.cursor = cursor;
+        this.classInfo = classInfo;
+        this.plan = classInfo.getBindingPlan(cursor);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (closed) {
+            return false;
+        }
+        if (!hasRow) {
+            hasRow = cursor.moveToNext();
+            if (!hasRow) {
+                close();
+            }
+        }
+        return hasRow;
+    }
+
+    /**
+     * @return
+     * @throws IllegalStateException 创建实体失败时抛出，迭代器不会关闭
+     */
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        hasRow = false;
+        try {
+            return classInfo.readRow(cursor, plan);
+        } catch (InstantiationException e) {
+            throw new IllegalStateException("创建实体失败！", e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("创建实体失败！", e);
+        }
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * 关闭Cursor并释放数据库连接，可以重复调用
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        hasRow = false;
+        try {
+            cursor.close();
+        } finally {
+            proxy.close(database);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.sanders.db;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * 编译期生成的实体类映射器，由compiler模块的注解处理器为每个IDColumn子类生成
+ * 生成类与实体类同包，类名为实体类名加{@link #MAPPER_SUFFIX}，直接访问字段和构造方法，不走反射
+ * 找不到生成类时ClassInfo退回反射实现
+ *
+ * @param <T>
+ */
+public interface EntityMapper<T extends IDColumn> {
+
+    /**
+     * 生成类的类名后缀
+     */
+    String MAPPER_SUFFIX = "$$Mapper";
+
+    /**
+     * 映射器处理的数据库字段，顺序与{@link #readCursor(IDColumn, Cursor, int[])}的indexes一致
+     *
+     * @return
+     */
+    String[] getColumnNames();
+
+    /**
+     * 直接调用无参构造方法创建实体
+     *
+     * @return
+     */
+    T newInstance();
+
+    /**
+     * 把实体字段写入ContentValues，不包含主键，值为NULL的字段不写入
+     *
+     * @param t
+     * @param values
+     */
+    void putValues(T t, ContentValues values);
+
+    /**
+     * 把实体字段按{@link #getColumnNames()}去掉主键后的顺序绑定到预编译语句，从位置1开始，值为NULL时绑定NULL
+     *
+     * @param t
+     * @param statement
+     */
+    void bindValues(T t, SQLiteStatement statement);
+
+    /**
+     * 从Cursor当前行读取字段到实体
+     *
+     * @param t
+     * @param cursor
+     * @param indexes 每个{@link #getColumnNames()}字段在Cursor中的位置，-1表示结果集中没有此字段
+     */
+    void readCursor(T t, Cursor cursor, int[] indexes);
+}
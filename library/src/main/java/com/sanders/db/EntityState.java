@@ -0,0 +1,40 @@
+package com.sanders.db;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * DBProxy在实体上维护的状态，开启修改跟踪或者有{@link ExternalBlob}字段时才创建
+ * Created by sanders on 15/7/4.
+ */
+final class EntityState {
+
+    /**
+     * 最近一次从数据库读取或者提交写入后的字段值，用于update时只更新修改过的字段
+     */
+    Object[] snapshot;
+
+    /**
+     * snapshot对应的主键
+     */
+    long snapshotKey;
+
+    /**
+     * {@link ExternalBlob}字段的内容引用，key是数据库字段名
+     */
+    private Map<String, String> blobRefs;
+
+    String getBlobRef(String column) {
+        return blobRefs == null ? null : blobRefs.get(column);
+    }
+
+    void setBlobRef(String column, String ref) {
+        if (blobRefs == null) {
+            if (ref == null) {
+                return;
+            }
+            blobRefs = new HashMap<String, String>();
+        }
+        blobRefs.put(column, ref);
+    }
+}
@@ -0,0 +1,22 @@
+package com.sanders.db;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * byte[]字段的内容保存到数据库旁边的文件中，表中只保存内容的SHA-1（TEXT字段）
+ * 相同内容只保存一个文件；查询时字段为null，通过{@link DBProxy#readBlob(IDColumn, String)}读取全部内容，
+ * 或者通过{@link DBProxy#openBlob(IDColumn, String)}、{@link DBProxy#mapBlob(IDColumn, String)}流式或者内存映射读取，不复制到Java数组
+ * 注意：已有字段加上此注解是不兼容的修改，查询后直接读取字段的代码会得到null，必须改为通过上述方法读取；
+ * 修改查询到的实体并保存时，字段为null表示不修改，不能用null清空内容，也不能据此判断字段是否有内容
+ * 更新时字段为null表示不修改；写事务回滚时删除本次事务新建的文件，
+ * 删除记录或替换内容后不再引用的文件需要调用{@link DBProxy#gcBlobs(Class[])}删除
+ * 已有的BLOB字段加上此注解后升级数据库版本，自动重建表时把每行的内容写入文件；去掉注解不会把文件内容迁移回表中
+ * Created by sanders on 15/7/4.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface ExternalBlob {
+}
@@ -0,0 +1,818 @@
+package com.sanders.db;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * 实体字段与数据库字段之间的转换器
+ * 每个字段在ClassInfo解析时确定一次类型，之后读写不再判断字段类型
+ * 基本类型字段使用Field.getInt/setInt等方法，避免装箱
+ * Created by sanders on 15/6/21.
+ */
+abstract class FieldCodec {
+
+    /**
+     * 实体字段
+     */
+    final Field field;
+
+    /**
+     * 数据库字段名称
+     */
+    final String column;
+
+    FieldCodec(Field field, String column) {
+        this.field = field;
+        this.column = column;
+    }
+
+    /**
+     * 根据字段类型创建转换器
+     *
+     * @param field
+     * @param column
+     * @return
+     */
+    static FieldCodec of(Field field, String column) {
+        Class<?> classType = field.getType();
+        if (field.isAnnotationPresent(ExternalBlob.class)) {
+            if (!classType.equals(byte[].class)) {
+                throw new IllegalArgumentException("@ExternalBlob只能用于byte[]字段：" + field);
+            }
+            return new ExternalBlobCodec(field, column);
+        }
+        if (classType.equals(Integer.TYPE)) {
+            return new IntCodec(field, column);
+        } else if (classType.equals(Integer.class)) {
+            return new BoxedIntCodec(field, column);
+        } else if (classType.equals(String.class)) {
+            return new StringCodec(field, column);
+        } else if (classType.equals(Boolean.TYPE)) {
+            return new BooleanCodec(field, column);
+        } else if (classType.equals(Boolean.class)) {
+            return new BoxedBooleanCodec(field, column);
+        } else if (classType.equals(Long.TYPE)) {
+            return new LongCodec(field, column);
+        } else if (classType.equals(Long.class)) {
+            return new BoxedLongCodec(field, column);
+        } else if (classType.equals(Double.TYPE)) {
+            return new DoubleCodec(field, column);
+        } else if (classType.equals(Double.class)) {
+            return new BoxedDoubleCodec(field, column);
+        } else if (classType.equals(Float.TYPE)) {
+            return new FloatCodec(field, column);
+        } else if (classType.equals(Float.class)) {
+            return new BoxedFloatCodec(field, column);
+        } else if (classType.equals(byte[].class)) {
+            return new BlobCodec(field, column);
+        } else if (classType.equals(Short.TYPE)) {
+            return new ShortCodec(field, column);
+        } else if (classType.equals(Short.class)) {
+            return new BoxedShortCodec(field, column);
+        } else if (classType.equals(Date.class)) {
+            return new DateCodec(field, column);
+        } else if (classType.equals(CharSequence.class)) {
+            return new UnsupportedCodec(field, column, "TEXT");
+        }
+        return new UnsupportedCodec(field, column, "NULL");
+    }
+
+    /**
+     * 数据库字段类型
+     *
+     * @return
+     */
+    abstract String getSqlType();
+
+    /**
+     * 把实体字段值写入ContentValues，值为NULL时不写入
+     *
+     * @param t
+     * @param values
+     * @throws IllegalAccessException
+     */
+    abstract void put(Object t, ContentValues values) throws IllegalAccessException;
+
+    /**
+     * 从Cursor读取字段值到实体
+     *
+     * @param t
+     * @param cursor
+     * @param index
+     * @throws IllegalAccessException
+     */
+    abstract void read(Object t, Cursor cursor, int index) throws IllegalAccessException;
+
+    /**
+     * 把实体字段值绑定到预编译语句，值为NULL时绑定NULL
+     *
+     * @param statement
+     * @param index
+     * @param t
+     * @throws IllegalAccessException
+     */
+    abstract void bind(SQLiteStatement statement, int index, Object t) throws IllegalAccessException;
+
+    /**
+     * 修改跟踪时保存的字段值，可变对象保存副本
+     *
+     * @param t
+     * @return
+     * @throws IllegalAccessException
+     */
+    Object snapshot(Object t) throws IllegalAccessException {
+        return field.get(t);
+    }
+
+    /**
+     * 字段值与{@link #snapshot(Object)}保存的值相比是否改变
+     *
+     * @param t
+     * @param snapshot
+     * @return
+     * @throws IllegalAccessException
+     */
+    boolean isChanged(Object t, Object snapshot) throws IllegalAccessException {
+        Object value = snapshot(t);
+        return value == null ? snapshot != null : !value.equals(snapshot);
+    }
+
+    /**
+     * 字段值是否可能为NULL
+     *
+     * @return
+     */
+    boolean isNullable() {
+        return false;
+    }
+
+    /**
+     * 是否参与插入和更新
+     *
+     * @return
+     */
+    boolean isWritable() {
+        return true;
+    }
+
+    static final class IntCodec extends FieldCodec {
+        IntCodec(Field field, String column) {
+            super(field, column);
+        }
+
+        @Override
+        String getSqlType() {
+            return "INTEGER";
+        }
+
+        @Override
+        void put(Object t, ContentValues values) throws IllegalAccessException {
+            values.put(column, field.getInt(t));
+        }
+
+        @Override
+        void read(Object t, Cursor cursor, int index) throws IllegalAccessException {
+            field.setInt(t, cursor.getInt(index));
+        }
+
+        @Override
+        void bind(SQLiteStatement statement, int index, Object t) throws IllegalAccessException {
+            statement.bindLong(index, field.getInt(t));
+        }
+    }
+
+    static final class BoxedIntCodec extends FieldCodec {
+        BoxedIntCodec(Field field, String column) {
+            super(field, column);
+        }
+
+        @Override
+        String getSqlType() {
+            return "INTEGER";
+        }
+
+        @Override
+        void put(Object t, ContentValues values) throws IllegalAccessException {
+            Integer value = (Integer) field.get(t);
+            if (value != null) {
+                values.put(column, value);
+            }
+        }
+
+        @Override
+        void read(Object t, Cursor cursor, int index) throws IllegalAccessException {
+            field.set(t, cursor.getInt(index));
+        }
+
+        @Override
+        boolean isNullable() {
+            return true;
+        }
+
+        @Override
+        void bind(SQLiteStatement statement, int index, Object t) throws IllegalAccessException {
+            Integer value = (Integer) field.get(t);
+            if (value != null) {
+                statement.bindLong(index, value);
+            } else {
+                statement.bindNull(index);
+            }
+        }
+    }
+
+    static final class LongCodec extends FieldCodec {
+        LongCodec(Field field, String column) {
+            super(field, column);
+        }
+
+        @Override
+        String getSqlType() {
+            return "INTEGER";
+        }
+
+        @Override
+        void put(Object t, ContentValues values) throws IllegalAccessException {
+            values.put(column, field.getLong(t));
+        }
+
+        @Override
+        void read(Object t, Cursor cursor, int index) throws IllegalAccessException {
+            field.setLong(t, cursor.getLong(index));
+        }
+
+        @Override
+        void bind(SQLiteStatement statement, int index, Object t) throws IllegalAccessException {
+            statement.bindLong(index, field.getLong(t));
+        }
+    }
+
+    static final class BoxedLongCodec extends FieldCodec {
+        BoxedLongCodec(Field field, String column) {
+            super(field, column);
+        }
+
+        @Override
+        String getSqlType() {
+            return "INTEGER";
+        }
+
+        @Override
+        void put(Object t, ContentValues values) throws IllegalAccessException {
+            Long value = (Long) field.get(t);
+            if (value != null) {
+                values.put(column, value);
+            }
+        }
+
+        @Override
+        void read(Object t, Cursor cursor, int index) throws IllegalAccessException {
+            field.set(t, cursor.getLong(index));
+        }
+
+        @Override
+        boolean isNullable() {
+            return true;
+        }
+
+        @Override
+        void bind(SQLiteStatement statement, int index, Object t) throws IllegalAccessException {
+            Long value = (Long) field.get(t);
+            if (value != null) {
+                statement.bindLong(index, value);
+            } else {
+                statement.bindNull(index);
+            }
+        }
+    }
+
+    static final class ShortCodec extends FieldCodec {
+        ShortCodec(Field field, String column) {
+            super(field, column);
+        }
+
+        @Override
+        String getSqlType() {
+            return "INTEGER";
+        }
+
+        @Override
+        void put(Object t, ContentValues values) throws IllegalAccessException {
+            values.put(column, field.getShort(t));
+        }
+
+        @Override
+        void read(Object t, Cursor cursor, int index) throws IllegalAccessException {
+            field.setShort(t, cursor.getShort(index));
+        }
+
+        @Override
+        void bind(SQLiteStatement statement, int index, Object t) throws IllegalAccessException {
+            statement.bindLong(index, field.getShort(t));
+        }
+    }
+
+    static final class BoxedShortCodec extends FieldCodec {
+        BoxedShortCodec(Field field, String column) {
+            super(field, column);
+        }
+
+        @Override
+        String getSqlType() {
+            return "INTEGER";
+        }
+
+        @Override
+        void put(Object t, ContentValues values) throws IllegalAccessException {
+            Short value = (Short) field.get(t);
+            if (value != null) {
+                values.put(column, value);
+            }
+        }
+
+        @Override
+        void read(Object t, Cursor cursor, int index) throws IllegalAccessException {
+            field.set(t, cursor.getShort(index));
+        }
+
+        @Override
+        boolean isNullable() {
+            return true;
+        }
+
+        @Override
+        void bind(SQLiteStatement statement, int index, Object t) throws IllegalAccessException {
+            Short value = (Short) field.get(t);
+            if (value != null) {
+                statement.bindLong(index, value);
+            } else {
+                statement.bindNull(index);
+            }
+        }
+    }
+
+    static final class BooleanCodec extends FieldCodec {
+        BooleanCodec(Field field, String column) {
+            super(field, column);
+        }
+
+        @Override
+        String getSqlType() {
+            return "INTEGER";
+        }
+
+        @Override
+        void put(Object t, ContentValues values) throws IllegalAccessException {
+            values.put(column, field.getBoolean(t));
+        }
+
+        @Override
+        void read(Object t, Cursor cursor, int index) throws IllegalAccessException {
+            field.setBoolean(t, cursor.getInt(index) == 1);
+        }
+
+        @Override
+        void bind(SQLiteStatement statement, int index, Object t) throws IllegalAccessException {
+            statement.bindLong(index, field.getBoolean(t) ? 1 : 0);
+        }
+    }
+
+    static final class BoxedBooleanCodec extends FieldCodec {
+        BoxedBooleanCodec(Field field, String column) {
+            super(field, column);
+        }
+
+        @Override
+        String getSqlType() {
+            return "INTEGER";
+        }
+
+        @Override
+        void put(Object t, ContentValues values) throws IllegalAccessException {
+            Boolean value = (Boolean) field.get(t);
+            if (value != null) {
+                values.put(column, value);
+            }
+        }
+
+        @Override
+        void read(Object t, Cursor cursor, int index) throws IllegalAccessException {
+            field.set(t, cursor.getInt(index) == 1);
+        }
+
+        @Override
+        boolean isNullable() {
+            return true;
+        }
+
+        @Override
+        void bind(SQLiteStatement statement, int index, Object t) throws IllegalAccessException {
+            Boolean value = (Boolean) field.get(t);
+            if (value != null) {
+                statement.bindLong(index, value ? 1 : 0);
+            } else {
+                statement.bindNull(index);
+            }
+        }
+    }
+
+    static final class DoubleCodec extends FieldCodec {
+        DoubleCodec(Field field, String column) {
+            super(field, column);
+        }
+
+        @Override
+        String getSqlType() {
+            return "REAL";
+        }
+
+        @Override
+        void put(Object t, ContentValues values) throws IllegalAccessException {
+            values.put(column, field.getDouble(t));
+        }
+
+        @Override
+        void read(Object t, Cursor cursor, int index) throws IllegalAccessException {
+            field.setDouble(t, cursor.getDouble(index));
+        }
+
+        @Override
+        void bind(SQLiteStatement statement, int index, Object t) throws IllegalAccessException {
+            statement.bindDouble(index, field.getDouble(t));
+        }
+    }
+
+    static final class BoxedDoubleCodec extends FieldCodec {
+        BoxedDoubleCodec(Field field, String column) {
+            super(field, column);
+        }
+
+        @Override
+        String getSqlType() {
+            return "REAL";
+        }
+
+        @Override
+        void put(Object t, ContentValues values) throws IllegalAccessException {
+            Double value = (Double) field.get(t);
+            if (value != null) {
+                values.put(column, value);
+            }
+        }
+
+        @Override
+        void read(Object t, Cursor cursor, int index) throws IllegalAccessException {
+            field.set(t, cursor.getDouble(index));
+        }
+
+        @Override
+        boolean isNullable() {
+            return true;
+        }
+
+        @Override
+        void bind(SQLiteStatement statement, int index, Object t) throws IllegalAccessException {
+            Double value = (Double) field.get(t);
+            if (value != null) {
+                statement.bindDouble(index, value);
+            } else {
+                statement.bindNull(index);
+            }
+        }
+    }
+
+    static final class FloatCodec extends FieldCodec {
+        FloatCodec(Field field, String column) {
+            super(field, column);
+        }
+
+        @Override
+        String getSqlType() {
+            return "REAL";
+        }
+
+        @Override
+        void put(Object t, ContentValues values) throws IllegalAccessException {
+            values.put(column, field.getFloat(t));
+        }
+
+        @Override
+        void read(Object t, Cursor cursor, int index) throws IllegalAccessException {
+            field.setFloat(t, cursor.getFloat(index));
+        }
+
+        @Override
+        void bind(SQLiteStatement statement, int index, Object t) throws IllegalAccessException {
+            statement.bindDouble(index, field.getFloat(t));
+        }
+    }
+
+    static final class BoxedFloatCodec extends FieldCodec {
+        BoxedFloatCodec(Field field, String column) {
+            super(field, column);
+        }
+
+        @Override
+        String getSqlType() {
+            return "REAL";
+        }
+
+        @Override
+        void put(Object t, ContentValues values) throws IllegalAccessException {
+            Float value = (Float) field.get(t);
+            if (value != null) {
+                values.put(column, value);
+            }
+        }
+
+        @Override
+        void read(Object t, Cursor cursor, int index) throws IllegalAccessException {
+            field.set(t, cursor.getFloat(index));
+        }
+
+        @Override
+        boolean isNullable() {
+            return true;
+        }
+
+        @Override
+        void bind(SQLiteStatement statement, int index, Object t) throws IllegalAccessException {
+            Float value = (Float) field.get(t);
+            if (value != null) {
+                statement.bindDouble(index, value);
+            } else {
+                statement.bindNull(index);
+            }
+        }
+    }
+
+    static final class StringCodec extends FieldCodec {
+        StringCodec(Field field, String column) {
+            super(field, column);
+        }
+
+        @Override
+        String getSqlType() {
+            return "TEXT";
+        }
+
+        @Override
+        void put(Object t, ContentValues values) throws IllegalAccessException {
+            String value = (String) field.get(t);
+            if (value != null) {
+                values.put(column, value);
+            }
+        }
+
+        @Override
+        void read(Object t, Cursor cursor, int index) throws IllegalAccessException {
+            field.set(t, cursor.getString(index));
+        }
+
+        @Override
+        boolean isNullable() {
+            return true;
+        }
+
+        @Override
+        void bind(SQLiteStatement statement, int index, Object t) throws IllegalAccessException {
+            String value = (String) field.get(t);
+            if (value != null) {
+                statement.bindString(index, value);
+            } else {
+                statement.bindNull(index);
+            }
+        }
+    }
+
+    static final class BlobCodec extends FieldCodec {
+        BlobCodec(Field field, String column) {
+            super(field, column);
+        }
+
+        @Override
+        String getSqlType() {
+            return "BLOB";
+        }
+
+        @Override
+        void put(Object t, ContentValues values) throws IllegalAccessException {
+            byte[] value = (byte[]) field.get(t);
+            if (value != null) {
+                values.put(column, value);
+            }
+        }
+
+        @Override
+        void read(Object t, Cursor cursor, int index) throws IllegalAccessException {
+            field.set(t, cursor.getBlob(index));
+        }
+
+        @Override
+        Object snapshot(Object t) throws IllegalAccessException {
+            byte[] value = (byte[]) field.get(t);
+            return value == null ? null : value.clone();
+        }
+
+        @Override
+        boolean isChanged(Object t, Object snapshot) throws IllegalAccessException {
+            return !Arrays.equals((byte[]) field.get(t), (byte[]) snapshot);
+        }
+
+        @Override
+        boolean isNullable() {
+            return true;
+        }
+
+        @Override
+        void bind(SQLiteStatement statement, int index, Object t) throws IllegalAccessException {
+            byte[] value = (byte[]) field.get(t);
+            if (value != null) {
+                statement.bindBlob(index, value);
+            } else {
+                statement.bindNull(index);
+            }
+        }
+    }
+
+    static final class DateCodec extends FieldCodec {
+        DateCodec(Field field, String column) {
+            super(field, column);
+        }
+
+        @Override
+        String getSqlType() {
+            return "INTEGER";
+        }
+
+        @Override
+        void put(Object t, ContentValues values) throws IllegalAccessException {
+            Date value = (Date) field.get(t);
+            if (value != null) {
+                values.put(column, value.getTime());
+            }
+        }
+
+        @Override
+        void read(Object t, Cursor cursor, int index) throws IllegalAccessException {
+            field.set(t, new Date(cursor.getLong(index)));
+        }
+
+        @Override
+        Object snapshot(Object t) throws IllegalAccessException {
+            Date value = (Date) field.get(t);
+            return value == null ? null : value.getTime();
+        }
+
+        @Override
+        boolean isNullable() {
+            return true;
+        }
+
+        @Override
+        void bind(SQLiteStatement statement, int index, Object t) throws IllegalAccessException {
+            Date value = (Date) field.get(t);
+            if (value != null) {
+                statement.bindLong(index, value.getTime());
+            } else {
+                statement.bindNull(index);
+            }
+        }
+    }
+
+    /**
+     * {@link ExternalBlob}字段，数据库中保存内容的SHA-1，内容保存在{@link BlobStore}
+     * 读取时字段为null，引用记录在{@link EntityState}；修改跟踪按数组对象判断是否改变
+     */
+    static final class ExternalBlobCodec extends FieldCodec {
+        private volatile BlobStore store;
+
+        ExternalBlobCodec(Field field, String column) {
+            super(field, column);
+        }
+
+        void setStore(BlobStore store) {
+            this.store = store;
+        }
+
+        BlobStore getStore() {
+            if (store == null) {
+                throw new IllegalStateException("没有设置BlobStore！");
+            }
+            return store;
+        }
+
+        @Override
+        String getSqlType() {
+            return "TEXT";
+        }
+
+        @Override
+        void put(Object t, ContentValues values) throws IllegalAccessException {
+            String ref = write(t);
+            if (ref != null) {
+                values.put(column, ref);
+            }
+        }
+
+        @Override
+        void read(Object t, Cursor cursor, int index) throws IllegalAccessException {
+            field.set(t, null);
+            setRef((IDColumn) t, cursor.getString(index));
+        }
+
+        @Override
+        Object snapshot(Object t) throws IllegalAccessException {
+            return field.get(t);
+        }
+
+        @Override
+        boolean isChanged(Object t, Object snapshot) throws IllegalAccessException {
+            return field.get(t) != snapshot;
+        }
+
+        @Override
+        boolean isNullable() {
+            return true;
+        }
+
+        @Override
+        void bind(SQLiteStatement statement, int index, Object t) throws IllegalAccessException {
+            String ref = write(t);
+            if (ref != null) {
+                statement.bindString(index, ref);
+            } else {
+                statement.bindNull(index);
+            }
+        }
+
+        /**
+         * 字段值写入文件
+         *
+         * @param t
+         * @return 字段为null时返回null
+         * @throws IllegalAccessException
+         */
+        private String write(Object t) throws IllegalAccessException {
+            byte[] value = (byte[]) field.get(t);
+            if (value == null) {
+                return null;
+            }
+            String ref;
+            try {
+                ref = getStore().write(value);
+            } catch (IOException e) {
+                throw new IllegalStateException("保存" + column + "失败！", e);
+            }
+            setRef((IDColumn) t, ref);
+            return ref;
+        }
+
+        private void setRef(IDColumn t, String ref) {
+            EntityState state = t.getState(ref != null);
+            if (state != null) {
+                state.setBlobRef(column, ref);
+            }
+        }
+    }
+
+    /**
+     * 不支持读写的字段类型，只参与建表
+     */
+    static final class UnsupportedCodec extends FieldCodec {
+        private final String sqlType;
+
+        UnsupportedCodec(Field field, String column, String sqlType) {
+            super(field, column);
+            this.sqlType = sqlType;
+        }
+
+        @Override
+        String getSqlType() {
+            return sqlType;
+        }
+
+        @Override
+        void put(Object t, ContentValues values) {
+        }
+
+        @Override
+        void read(Object t, Cursor cursor, int index) {
+        }
+
+        @Override
+        boolean isWritable() {
+            return false;
+        }
+
+        @Override
+        void bind(SQLiteStatement statement, int index, Object t) {
+            statement.bindNull(index);
+        }
+    }
+}
@@ -19,6 +19,22 @@ public abstract class IDColumn implements Serializable {
      */
     private long _primary_key;
 
+    /**
+     * DBProxy维护的状态，没有开启修改跟踪也没有{@link ExternalBlob}字段时为null
+     */
+    private transient EntityState state;
+
+    /**
+     * @param create 不存在时是否创建
+     * @return
+     */
+    EntityState getState(boolean create) {
+        if (state == null && create) {
+            state = new EntityState();
+        }
+        return state;
+    }
+
     public long getPrimaryKey() {
         return _primary_key;
     }
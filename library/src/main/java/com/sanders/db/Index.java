@@ -0,0 +1,45 @@
+package com.sanders.db;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 声明索引，建表和升级时自动创建，注解删除或修改后升级时自动删除或重建
+ * 用在字段上是单字段索引；用在实体类上或者放在{@link Indexes}中时通过columns指定多字段索引
+ * 数据库中的索引名称为index_表名_name，没有指定name时用字段名连接
+ * <pre>
+ * &#64;Indexes({&#64;Index(columns = {"last_name", "first_name"}), &#64;Index(columns = "phone", unique = true)})
+ * public class User extends IDColumn {
+ *     &#64;Index
+ *     private int age;
+ * }
+ * </pre>
+ * Created by sanders on 15/7/1.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.FIELD, ElementType.TYPE})
+public @interface Index {
+
+    /**
+     * 索引名称，为空时用字段名连接
+     *
+     * @return
+     */
+    String name() default "";
+
+    /**
+     * 索引字段，数据库字段名或者Java字段名；用在字段上时忽略
+     *
+     * @return
+     */
+    String[] columns() default {};
+
+    /**
+     * 是否唯一索引
+     *
+     * @return
+     */
+    boolean unique() default false;
+}
@@ -0,0 +1,66 @@
+package com.sanders.db;
+
+import java.util.Arrays;
+
+/**
+ * 由{@link Index}解析出的索引定义
+ * Created by sanders on 15/7/1.
+ */
+final class IndexInfo {
+
+    /**
+     * 自动管理的索引名称前缀，升级时只处理这个前缀的索引
+     */
+    static final String PREFIX = "index_";
+
+    final String name;
+    final String[] columns;
+    final boolean unique;
+
+    IndexInfo(String tableName, String name, String[] columns, boolean unique) {
+        StringBuilder builder = new StringBuilder(getPrefix(tableName));
+        if (name != null && name.length() > 0) {
+            builder.append(name);
+        } else {
+            for (int i = 0; i < columns.length; i++) {
+                if (i > 0) {
+                    builder.append('_');
+                }
+                builder.append(columns[i]);
+            }
+        }
+        this.name = builder.toString();
+        this.columns = columns;
+        this.unique = unique;
+    }
+
+    static String getPrefix(String tableName) {
+        return PREFIX + tableName + "_";
+    }
+
+    String getCreateSql(String tableName) {
+        StringBuilder sql = new StringBuilder("CREATE ");
+        if (unique) {
+            sql.append("UNIQUE ");
+        }
+        sql.append("INDEX IF NOT EXISTS `").append(name).append("` ON `").append(tableName).append("` (");
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                sql.append(", ");
+            }
+            sql.append('`').append(columns[i]).append('`');
+        }
+        return sql.append(");").toString();
+    }
+
+    /**
+     * 数据库中已有索引的定义是否与此相同
+     *
+     * @param columns
+     * @param unique
+     * @return
+     */
+    boolean matches(String[] columns, boolean unique) {
+        return this.unique == unique && Arrays.equals(this.columns, columns);
+    }
+}
@@ -0,0 +1,17 @@
+package com.sanders.db;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 在实体类上声明多个索引
+ * Created by sanders on 15/7/1.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface Indexes {
+
+    Index[] value();
+}
@@ -30,6 +30,26 @@ public abstract class OnDBUpgrade {
         return false;
     }
 
+    /**
+     * 字段类型改变自动重建表时，每复制一批数据调用此方法
+     * @param tableName
+     * @param copied 已复制的行数
+     * @param total 旧表总行数
+     */
+    public void onProgress(String tableName, long copied, long total){
+    }
+
+    /**
+     * 字段类型改变自动重建表时，有的值转换后发生了变化（如非数字文本转为INTEGER），此时旧表保留为备份不删除
+     * 确认数据后可以在endUpgrade中删除备份表
+     * @param tableName
+     * @param column 发生变化的字段
+     * @param rows 发生变化的行数
+     * @param backupTable 保留的旧表名称
+     */
+    public void onLossyConversion(String tableName, String column, long rows, String backupTable){
+    }
+
     /**
      * 数据库升级结束调用此方法
      * @param db
@@ -0,0 +1,15 @@
+package com.sanders.db;
+
+/**
+ * 批量操作进度回调
+ * Created by sanders on 15/6/22.
+ */
+public interface OnProgressListener {
+
+    /**
+     * 每提交一批数据后调用
+     *
+     * @param count 到目前为止已处理的总行数
+     */
+    void onProgress(long count);
+}
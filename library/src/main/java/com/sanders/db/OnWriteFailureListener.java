@@ -0,0 +1,16 @@
+package com.sanders.db;
+
+/**
+ * 延迟写入失败回调，在延迟写入后台线程中调用
+ * Created by sanders on 15/6/25.
+ */
+public interface OnWriteFailureListener {
+
+    /**
+     * 整批提交失败后逐个重试仍然失败的实体，这个实体没有写入数据库
+     *
+     * @param t
+     * @param e
+     */
+    void onWriteFailure(IDColumn t, RuntimeException e);
+}
@@ -0,0 +1,104 @@
+package com.sanders.db;
+
+import android.util.Base64;
+
+import java.io.UnsupportedEncodingException;
+import java.util.List;
+
+/**
+ * 游标分页查询的一页结果
+ * 下一页从本页最后一行的排序字段值和主键继续查询，不使用OFFSET，每一页的查询代价与第一页相同
+ * Created by sanders on 15/6/27.
+ *
+ * @param <T>
+ */
+public final class Page<T extends IDColumn> {
+
+    private final List<T> list;
+    private final String nextToken;
+
+    Page(List<T> list, String nextToken) {
+        this.list = list;
+        this.nextToken = nextToken;
+    }
+
+    /**
+     * 本页实体集合
+     *
+     * @return
+     */
+    public List<T> getList() {
+        return list;
+    }
+
+    /**
+     * 查询下一页使用的令牌，没有下一页时为null
+     *
+     * @return
+     */
+    public String getNextToken() {
+        return nextToken;
+    }
+
+    /**
+     * 是否还有下一页
+     *
+     * @return
+     */
+    public boolean hasNext() {
+        return nextToken != null;
+    }
+
+    /**
+     * 分页令牌的内容：排序字段、排序方向、最后一行的主键和排序字段值
+     */
+    static final class Token {
+        final String column;
+        final boolean descending;
+        final long keyId;
+        /**
+         * 排序字段值，为NULL时为null；按主键排序时不使用
+         */
+        final String value;
+
+        Token(String column, boolean descending, long keyId, String value) {
+            this.column = column;
+            this.descending = descending;
+            this.keyId = keyId;
+            this.value = value;
+        }
+
+        String encode() {
+            StringBuilder builder = new StringBuilder();
+            builder.append(column).append('\n').append(descending ? 1 : 0).append('\n').append(keyId);
+            if (value != null) {
+                builder.append('\n').append(value);
+            }
+            try {
+                return Base64.encodeToString(builder.toString().getBytes("UTF-8"), Base64.URL_SAFE | Base64.NO_WRAP);
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * @param token
+         * @return
+         * @throws IllegalArgumentException 令牌格式错误
+         */
+        static Token decode(String token) {
+            try {
+                String text = new String(Base64.decode(token, Base64.URL_SAFE | Base64.NO_WRAP), "UTF-8");
+                String[] parts = text.split("\n", 4);
+                if (parts.length < 3) {
+                    throw new IllegalArgumentException("分页令牌格式错误！");
+                }
+                return new Token(parts[0], "1".equals(parts[1]), Long.parseLong(parts[2]), parts.length == 4 ? parts[3] : null);
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("分页令牌格式错误！", e);
+            }
+        }
+    }
+}
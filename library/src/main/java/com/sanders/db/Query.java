@@ -0,0 +1,275 @@
+package com.sanders.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * 链式查询构建器，由{@link DBProxy#from(Class)}创建
+ * 字段名可以是数据库字段名或者Java字段名，构建时按ClassInfo校验；条件值全部使用?占位符绑定，
+ * 相同结构的查询生成相同的SQL文本，SQLite连接可以复用已编译的语句
+ * 非线程安全，一个Query对象只在一个线程中构建和执行
+ * Created by sanders on 15/6/30.
+ *
+ * @param <T>
+ */
+public final class Query<T extends IDColumn> {
+
+    private static final Set<String> OPERATORS = new HashSet<String>(Arrays.asList("=", "!=", "<>", "<", "<=", ">", ">=", "LIKE", "GLOB"));
+
+    private final DBProxy proxy;
+    private final Class<T> clazz;
+    private final ClassInfo<T> classInfo;
+    private final StringBuilder where = new StringBuilder();
+    private final List<String> args = new ArrayList<String>();
+    private final StringBuilder orderBy = new StringBuilder();
+    private Set<String> columns;
+    private int limit = -1;
+    private int offset;
+
+    Query(DBProxy proxy, Class<T> clazz) {
+        this.proxy = proxy;
+        this.clazz = clazz;
+        this.classInfo = proxy.getClassInfo(clazz);
+    }
+
+    /**
+     * 添加条件，多个条件之间是AND关系
+     *
+     * @param column
+     * @param operator =、!=、<>、<、<=、>、>=、LIKE、GLOB
+     * @param value    不能为NULL，判断NULL使用{@link #whereNull(String)}
+     * @return
+     */
+    public Query<T> where(String column, String operator, Object value) {
+        String op = operator == null ? null : operator.trim().toUpperCase(Locale.US);
+        if (!OPERATORS.contains(op)) {
+            throw new IllegalArgumentException("不支持的操作符：" + operator);
+        }
+        if (value == null) {
+            throw new NullPointerException("条件值不能为NULL，请使用whereNull/whereNotNull！");
+        }
+        appendCondition().append('`').append(checkColumn(column)).append("` ").append(op).append(" ?");
+        args.add(toArg(value));
+        return this;
+    }
+
+    /**
+     * 添加等于条件
+     *
+     * @param column
+     * @param value
+     * @return
+     */
+    public Query<T> where(String column, Object value) {
+        return where(column, "=", value);
+    }
+
+    /**
+     * 添加IN条件，values为空时查询结果为空
+     *
+     * @param column
+     * @param values
+     * @return
+     */
+    public Query<T> whereIn(String column, Object... values) {
+        String name = checkColumn(column);
+        if (values == null || values.length == 0) {
+            appendCondition().append("0");
+            return this;
+        }
+        appendCondition().append('`').append(name).append("` IN (");
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == null) {
+                throw new NullPointerException("IN条件值不能为NULL！");
+            }
+            where.append(i == 0 ? "?" : ", ?");
+            args.add(toArg(values[i]));
+        }
+        where.append(')');
+        return this;
+    }
+
+    public Query<T> whereNull(String column) {
+        appendCondition().append('`').append(checkColumn(column)).append("` IS NULL");
+        return this;
+    }
+
+    public Query<T> whereNotNull(String column) {
+        appendCondition().append('`').append(checkColumn(column)).append("` IS NOT NULL");
+        return this;
+    }
+
+    /**
+     * 按主键查询
+     *
+     * @param keyId
+     * @return
+     */
+    public Query<T> whereKey(long keyId) {
+        return where(IDColumn.PRIMARY_KEY, "=", keyId);
+    }
+
+    /**
+     * 添加排序字段，多次调用按调用顺序排序
+     *
+     * @param column
+     * @param descending
+     * @return
+     */
+    public Query<T> orderBy(String column, boolean descending) {
+        if (orderBy.length() > 0) {
+            orderBy.append(", ");
+        }
+        orderBy.append('`').append(checkColumn(column)).append(descending ? "` DESC" : "` ASC");
+        return this;
+    }
+
+    public Query<T> limit(int limit) {
+        this.limit = limit;
+        return this;
+    }
+
+    public Query<T> offset(int offset) {
+        this.offset = offset;
+        return this;
+    }
+
+    /**
+     * 只查询部分字段，主键总是会查询；没有查询的字段保持实体的默认值，这样的实体不要直接用于update
+     *
+     * @param columns
+     * @return
+     */
+    public Query<T> select(String... columns) {
+        if (this.columns == null) {
+            this.columns = new LinkedHashSet<String>();
+            this.columns.add(IDColumn.PRIMARY_KEY);
+        }
+        for (String column : columns) {
+            this.columns.add(checkColumn(column));
+        }
+        return this;
+    }
+
+    /**
+     * 查询实体集合
+     *
+     * @return
+     */
+    public List<T> list() {
+        return proxy.queryList(clazz, getColumns(), getSelection(), getSelectionArgs(), null, null, getOrderBy(), getLimit());
+    }
+
+    /**
+     * 查询第一条记录
+     *
+     * @return 没有记录时返回null
+     */
+    public T first() {
+        int oldLimit = limit;
+        limit = 1;
+        try {
+            List<T> list = list();
+            return list.isEmpty() ? null : list.get(0);
+        } finally {
+            limit = oldLimit;
+        }
+    }
+
+    /**
+     * 逐行读取结果集，用完必须关闭
+     *
+     * @return
+     * @see DBProxy#iterate(Class, String, String[], String)
+     */
+    public EntityIterator<T> iterate() {
+        return proxy.iterate(clazz, getColumns(), getSelection(), getSelectionArgs(), getOrderBy(), getLimit());
+    }
+
+    /**
+     * 查询满足条件的数量，忽略排序和分页
+     *
+     * @return
+     */
+    public long count() {
+        return proxy.queryCount(clazz, getSelection(), getSelectionArgs());
+    }
+
+    /**
+     * 删除满足条件的记录，忽略排序和分页
+     *
+     * @return
+     */
+    public int delete() {
+        return proxy.delete(clazz, getSelection(), getSelectionArgs());
+    }
+
+    String[] getColumns() {
+        return columns == null ? null : columns.toArray(new String[columns.size()]);
+    }
+
+    String getSelection() {
+        return where.length() == 0 ? null : where.toString();
+    }
+
+    String[] getSelectionArgs() {
+        return args.toArray(new String[args.size()]);
+    }
+
+    String getOrderBy() {
+        return orderBy.length() == 0 ? null : orderBy.toString();
+    }
+
+    String getLimit() {
+        if (limit < 0) {
+            //SQLiteDatabase.query的limit不支持负数
+            return offset > 0 ? offset + "," + Long.MAX_VALUE : null;
+        }
+        return offset > 0 ? offset + "," + limit : String.valueOf(limit);
+    }
+
+    private StringBuilder appendCondition() {
+        if (where.length() > 0) {
+            where.append(" AND ");
+        }
+        return where;
+    }
+
+    /**
+     * 校验字段属于实体类，Java字段名转换为数据库字段名
+     *
+     * @param column
+     * @return 数据库字段名
+     */
+    private String checkColumn(String column) {
+        if (column == null) {
+            throw new NullPointerException("字段名不能为NULL！");
+        }
+        String name = classInfo.getColumnName(column);
+        if (name != null) {
+            return name;
+        }
+        throw new IllegalArgumentException(column + "不是" + classInfo.getTableName() + "的字段！");
+    }
+
+    /**
+     * 条件值转换为绑定参数，与实体字段写入数据库的格式一致
+     *
+     * @param value
+     * @return
+     */
+    static String toArg(Object value) {
+        if (value instanceof Boolean) {
+            return (Boolean) value ? "1" : "0";
+        } else if (value instanceof Date) {
+            return String.valueOf(((Date) value).getTime());
+        }
+        return String.valueOf(value);
+    }
+}
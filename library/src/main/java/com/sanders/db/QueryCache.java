@@ -0,0 +1,185 @@
+package com.sanders.db;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 查询结果缓存，按SQL和参数缓存queryList、querySqlList、queryCount的结果，只缓存开启了缓存的实体类
+ * 每个结果记录查询涉及的表，通过DBProxy写入某个表时移除所有涉及这个表的结果，execSQL清空全部结果
+ * 按缓存的总行数限制大小，超出时移除最久没有使用的结果；写事务期间的查询结果不放入缓存，规则与{@link EntityCache}相同
+ * Created by sanders on 15/6/29.
+ */
+final class QueryCache {
+
+    private final int maxRows;
+    private final Set<Class> classes;
+    private final LinkedHashMap<Key, Entry> map = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+    private int rows;
+    private long version;
+    private boolean writing;
+    /**
+     * 本次写事务中已经移除过结果的表，写事务期间不会放入新结果，同一个表不需要重复移除
+     */
+    private final Set<String> invalidated = new HashSet<String>();
+    private long hitCount;
+    private long missCount;
+
+    QueryCache(int maxRows, Set<Class> classes) {
+        if (maxRows < 1) {
+            throw new IllegalArgumentException("maxRows必须大于0！");
+        }
+        this.maxRows = maxRows;
+        this.classes = classes;
+    }
+
+    /**
+     * 实体类是否开启了查询缓存
+     *
+     * @param clazz
+     * @return
+     */
+    boolean isCached(Class<?> clazz) {
+        return classes.contains(clazz);
+    }
+
+    synchronized Object get(Key key) {
+        Entry entry = map.get(key);
+        if (entry == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        return entry.value;
+    }
+
+    synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * @param key
+     * @param tables  结果涉及的表；raw sql查询传入小写的sql，移除时按表名匹配
+     * @param value
+     * @param weight  结果的行数
+     * @param version 查询前{@link #getVersion()}的返回值
+     */
+    synchronized void put(Key key, String tables, Object value, int weight, long version) {
+        if (writing || this.version != version || weight > maxRows) {
+            return;
+        }
+        Entry old = map.put(key, new Entry(tables, value, Math.max(weight, 1)));
+        if (old != null) {
+            rows -= old.weight;
+        }
+        rows += Math.max(weight, 1);
+        Iterator<Entry> iterator = map.values().iterator();
+        while (rows > maxRows && iterator.hasNext()) {
+            rows -= iterator.next().weight;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * 移除涉及table的结果
+     *
+     * @param table
+     */
+    synchronized void invalidate(String table) {
+        if (map.isEmpty() || (writing && !invalidated.add(table))) {
+            return;
+        }
+        Iterator<Entry> iterator = map.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (references(entry.tables, table)) {
+                rows -= entry.weight;
+                iterator.remove();
+            }
+        }
+    }
+
+    synchronized void clear() {
+        map.clear();
+        rows = 0;
+    }
+
+    synchronized void beginWrite() {
+        writing = true;
+        invalidated.clear();
+        version++;
+    }
+
+    synchronized void endWrite() {
+        writing = false;
+        invalidated.clear();
+        version++;
+    }
+
+    synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * text中是否出现了完整的表名
+     *
+     * @param text
+     * @param table
+     * @return
+     */
+    static boolean references(String text, String table) {
+        int index = text.indexOf(table);
+        while (index >= 0) {
+            int end = index + table.length();
+            if ((index == 0 || !isNamePart(text.charAt(index - 1))) && (end == text.length() || !isNamePart(text.charAt(end)))) {
+                return true;
+            }
+            index = text.indexOf(table, index + 1);
+        }
+        return false;
+    }
+
+    private static boolean isNamePart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    /**
+     * 缓存键，由查询方式、SQL各部分和参数组成
+     */
+    static final class Key {
+        private final Object[] parts;
+
+        Key(Object... parts) {
+            this.parts = parts;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return this == o || (o instanceof Key && Arrays.deepEquals(parts, ((Key) o).parts));
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.deepHashCode(parts);
+        }
+    }
+
+    private static final class Entry {
+        final String tables;
+        final Object value;
+        final int weight;
+
+        Entry(String tables, Object value, int weight) {
+            this.tables = tables;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.sanders.db;
+
+/**
+ * 逐行遍历查询结果的回调
+ * Created by sanders on 15/6/26.
+ *
+ * @param <T>
+ */
+public interface RowVisitor<T extends IDColumn> {
+
+    /**
+     * 每读取一行调用一次，实体只在本次调用中使用时可以不保留引用，遍历占用的内存与结果集大小无关
+     *
+     * @param t
+     * @return 返回false停止遍历
+     */
+    boolean visit(T t);
+}
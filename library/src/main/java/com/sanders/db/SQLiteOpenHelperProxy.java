@@ -2,25 +2,42 @@ package com.sanders.db;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 
+import java.io.IOException;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Created by sanders on 15/3/30.
  */
 public class SQLiteOpenHelperProxy extends SQLiteOpenHelper {
 
+    /**
+     * 重建表时每批复制的行数
+     */
+    private static final int MIGRATE_BATCH_SIZE = 5000;
+    /**
+     * 迁移到{@link ExternalBlob}时每次读取的字节数，小于CursorWindow的大小
+     */
+    private static final int BLOB_CHUNK_SIZE = 512 * 1024;
+
     private Collection<Class> classes;
     private OnDBUpgrade upgrade;
     private DBProxy proxy;
+    private boolean writeAheadLogging;
 
     public SQLiteOpenHelperProxy(Context context, String dbName, int dbVersion, Collection<Class> classes, OnDBUpgrade upgrade) {
         super(context, dbName, null, dbVersion);
@@ -32,6 +49,23 @@ public class SQLiteOpenHelperProxy extends SQLiteOpenHelper {
         this.proxy = proxy;
     }
 
+    /**
+     * 设置打开数据库时是否开启WAL模式
+     *
+     * @param writeAheadLogging
+     */
+    public void setWriteAheadLogging(boolean writeAheadLogging) {
+        this.writeAheadLogging = writeAheadLogging;
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (writeAheadLogging && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB && !db.isReadOnly()) {
+            db.enableWriteAheadLogging();
+        }
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db) {
         Iterator<Class> iterator = classes.iterator();
@@ -41,6 +75,7 @@ public class SQLiteOpenHelperProxy extends SQLiteOpenHelper {
                 String sql = classInfo.getCreateTableSql();
                 db.beginTransaction();
                 db.execSQL(sql);
+                createIndexes(db, classInfo);
                 db.setTransactionSuccessful();
             } catch (NoSuchFieldException e) {
                 e.printStackTrace();
@@ -50,6 +85,70 @@ public class SQLiteOpenHelperProxy extends SQLiteOpenHelper {
         }
     }
 
+    /**
+     * 创建{@link Index}声明的索引，并与数据库中已有的索引对比：
+     * 删除注解已经去掉的索引，重建字段或者唯一性改变的索引
+     * 只处理{@link IndexInfo#PREFIX}开头的索引，手动创建的其它索引不受影响
+     *
+     * @param db
+     * @param classInfo
+     */
+    private void createIndexes(SQLiteDatabase db, ClassInfo classInfo) {
+        String tableName = classInfo.getTableName();
+        String prefix = IndexInfo.getPrefix(tableName);
+        Map<String, IndexInfo> declared = new HashMap<String, IndexInfo>();
+        for (Object index : classInfo.getIndexes()) {
+            declared.put(((IndexInfo) index).name, (IndexInfo) index);
+        }
+        Map<String, Boolean> existing = new HashMap<String, Boolean>();
+        Cursor cursor = db.rawQuery("PRAGMA index_list(`" + tableName + "`)", null);
+        try {
+            while (cursor.moveToNext()) {
+                String name = cursor.getString(cursor.getColumnIndex("name"));
+                if (name.startsWith(prefix)) {
+                    existing.put(name, cursor.getInt(cursor.getColumnIndex("unique")) == 1);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        Set<String> valid = new HashSet<String>();
+        for (Map.Entry<String, Boolean> entry : existing.entrySet()) {
+            IndexInfo index = declared.get(entry.getKey());
+            if (index != null && index.matches(getIndexColumns(db, entry.getKey()), entry.getValue())) {
+                valid.add(entry.getKey());
+            } else {
+                db.execSQL("DROP INDEX IF EXISTS `" + entry.getKey() + "`;");
+            }
+        }
+        for (IndexInfo index : declared.values()) {
+            if (valid.contains(index.name)) {
+                continue;
+            }
+            try {
+                //表改名后旧表上可能留有同名索引
+                db.execSQL("DROP INDEX IF EXISTS `" + index.name + "`;");
+                db.execSQL(index.getCreateSql(tableName));
+            } catch (SQLException e) {
+                //已有数据不满足唯一索引时创建失败，不影响建表
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private String[] getIndexColumns(SQLiteDatabase db, String indexName) {
+        List<String> columns = new ArrayList<String>();
+        Cursor cursor = db.rawQuery("PRAGMA index_info(`" + indexName + "`)", null);
+        try {
+            while (cursor.moveToNext()) {
+                columns.add(cursor.getString(cursor.getColumnIndex("name")));
+            }
+        } finally {
+            cursor.close();
+        }
+        return columns.toArray(new String[columns.size()]);
+    }
+
     private void upgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         Iterator<Class> iterator = classes.iterator();
         List<String> sqlList = new ArrayList<String>();
@@ -59,6 +158,7 @@ public class SQLiteOpenHelperProxy extends SQLiteOpenHelper {
             String tableName = classInfo.getTableName();
             Cursor cursor = db.rawQuery("PRAGMA table_info(`" + tableName + "`)", null);//查询表结构
             if (cursor.getCount() < 2) {
+                cursor.close();
                 continue;
             }
             Map<String, String> dbFieldMap = new HashMap<String, String>();
@@ -69,16 +169,20 @@ public class SQLiteOpenHelperProxy extends SQLiteOpenHelper {
             }
             cursor.close();
             Map<String, Field> fieldMap = classInfo.getFieldMap();
+            boolean typeChanged = false;
             //更新数据库字段及字段类型
             for (Map.Entry<String, Field> entry : fieldMap.entrySet()) {
                 if (!dbFieldMap.containsKey(entry.getKey())) {
                     sqlList.add("ALTER TABLE `" + tableName + "` ADD COLUMN `" + entry.getKey() + "` " + ClassInfo.getDBFieldType(entry.getValue()) + ";");
                 } else if (!dbFieldMap.get(entry.getKey()).equals(ClassInfo.getDBFieldType(entry.getValue()))) {
-                    sqlList.clear();
-                    sqlList.add("ALTER TABLE `" + tableName + "` RENAME TO `" + tableName + "_" + oldVersion + "`;");
+                    typeChanged = true;
                     break;
                 }
             }
+            if (typeChanged) {
+                rebuildTable(db, classInfo, dbFieldMap, oldVersion);
+                continue;
+            }
             db.beginTransaction();
             for (String sql : sqlList) {
                 db.execSQL(sql);
@@ -89,6 +193,206 @@ public class SQLiteOpenHelperProxy extends SQLiteOpenHelper {
     }
 
 
+    /**
+     * 字段类型改变时重建表并迁移数据：旧表改名为"表名_oldVersion"，创建新表，
+     * 按主键分批用INSERT ... SELECT把数据复制到新表，类型改变的字段用CAST转换，新表没有的字段丢弃
+     * 复制后逐个检查CAST的字段，把新值转换回旧类型与旧值比较，全部一致时删除旧表；
+     * 有不一致的行（如TEXT转INTEGER时的非数字文本）时保留旧表作为备份，并通过{@link OnDBUpgrade#onLossyConversion}报告
+     * BLOB字段改为{@link ExternalBlob}时不使用CAST，复制完成后把每行的内容写入文件并更新为引用
+     * 索引在之后的onCreate中创建，避免复制时逐行维护索引
+     * onUpgrade在SQLiteOpenHelper的升级事务中执行，迁移失败时整个升级回滚
+     *
+     * @param db
+     * @param classInfo
+     * @param dbFieldMap 旧表的字段及类型
+     * @param oldVersion
+     */
+    private void rebuildTable(SQLiteDatabase db, ClassInfo classInfo, Map<String, String> dbFieldMap, int oldVersion) {
+        String tableName = classInfo.getTableName();
+        String oldTable = tableName + "_" + oldVersion;
+        db.execSQL("ALTER TABLE `" + tableName + "` RENAME TO `" + oldTable + "`;");
+        try {
+            db.execSQL(classInfo.getCreateTableSql());
+        } catch (NoSuchFieldException e) {
+            throw new IllegalStateException(e);
+        }
+        StringBuilder columns = new StringBuilder();
+        StringBuilder values = new StringBuilder();
+        Map<String, String> castColumns = new HashMap<String, String>();
+        List<FieldCodec.ExternalBlobCodec> externalBlobs = new ArrayList<FieldCodec.ExternalBlobCodec>();
+        Map<String, Field> fieldMap = classInfo.getFieldMap();
+        for (Map.Entry<String, Field> entry : fieldMap.entrySet()) {
+            String column = entry.getKey();
+            String oldType = dbFieldMap.get(column);
+            if (oldType == null) {
+                continue;
+            }
+            FieldCodec codec = classInfo.getCodec(column);
+            if (codec instanceof FieldCodec.ExternalBlobCodec && "BLOB".equals(oldType)) {
+                externalBlobs.add((FieldCodec.ExternalBlobCodec) codec);
+                continue;
+            }
+            if (columns.length() > 0) {
+                columns.append(", ");
+                values.append(", ");
+            }
+            columns.append('`').append(column).append('`');
+            String type = ClassInfo.getDBFieldType(entry.getValue());
+            if (oldType.equals(type) || "NULL".equals(type)) {
+                values.append('`').append(column).append('`');
+            } else {
+                values.append("CAST(`").append(column).append("` AS ").append(type).append(')');
+                castColumns.put(column, oldType);
+            }
+        }
+        String key = "`" + IDColumn.PRIMARY_KEY + "`";
+        SQLiteStatement countStatement = db.compileStatement("SELECT COUNT(*) FROM `" + oldTable + "`");
+        SQLiteStatement maxStatement = db.compileStatement("SELECT MAX(" + key + ") FROM `" + oldTable + "`");
+        //每批最后一行的主键，主键上有索引，OFFSET只扫描一批的行数
+        SQLiteStatement upperStatement = db.compileStatement("SELECT " + key + " FROM `" + oldTable + "` WHERE " + key + " > ? ORDER BY " + key + " LIMIT 1 OFFSET " + (MIGRATE_BATCH_SIZE - 1));
+        SQLiteStatement copyStatement = db.compileStatement("INSERT INTO `" + tableName + "` (" + columns + ") SELECT " + values + " FROM `" + oldTable + "` WHERE " + key + " > ? AND " + key + " <= ?");
+        SQLiteStatement changesStatement = db.compileStatement("SELECT changes()");
+        try {
+            long total = countStatement.simpleQueryForLong();
+            if (total > 0) {
+                long maxKey = maxStatement.simpleQueryForLong();
+                long lastKey = Long.MIN_VALUE;
+                long copied = 0;
+                while (lastKey < maxKey) {
+                    long upperKey;
+                    upperStatement.bindLong(1, lastKey);
+                    try {
+                        upperKey = upperStatement.simpleQueryForLong();
+                    } catch (SQLiteDoneException e) {
+                        upperKey = maxKey;
+                    }
+                    copyStatement.bindLong(1, lastKey);
+                    copyStatement.bindLong(2, upperKey);
+                    copyStatement.execute();
+                    copied += changesStatement.simpleQueryForLong();
+                    lastKey = upperKey;
+                    if (upgrade != null) {
+                        upgrade.onProgress(tableName, copied, total);
+                    }
+                }
+            }
+        } finally {
+            countStatement.close();
+            maxStatement.close();
+            upperStatement.close();
+            copyStatement.close();
+            changesStatement.close();
+        }
+        for (FieldCodec.ExternalBlobCodec codec : externalBlobs) {
+            moveToBlobStore(db, codec, oldTable, tableName);
+        }
+        boolean lossy = false;
+        for (Map.Entry<String, String> entry : castColumns.entrySet()) {
+            long rows = countLossyRows(db, tableName, oldTable, entry.getKey(), entry.getValue());
+            if (rows > 0) {
+                lossy = true;
+                if (upgrade != null) {
+                    upgrade.onLossyConversion(tableName, entry.getKey(), rows, oldTable);
+                }
+            }
+        }
+        if (!lossy) {
+            db.execSQL("DROP TABLE `" + oldTable + "`;");
+        }
+    }
+
+    /**
+     * 类型转换后值发生变化的行数：新值CAST回旧类型后与旧值不同
+     * 旧字段没有声明类型时直接比较
+     *
+     * @param db
+     * @param tableName
+     * @param oldTable
+     * @param column
+     * @param oldType
+     * @return
+     */
+    private long countLossyRows(SQLiteDatabase db, String tableName, String oldTable, String column, String oldType) {
+        String key = "`" + IDColumn.PRIMARY_KEY + "`";
+        String newValue = "n.`" + column + "`";
+        if (oldType.trim().length() > 0) {
+            newValue = "CAST(" + newValue + " AS " + oldType + ")";
+        }
+        SQLiteStatement statement = db.compileStatement("SELECT COUNT(*) FROM `" + tableName + "` n JOIN `" + oldTable + "` o ON n." + key + " = o." + key
+                + " WHERE " + newValue + " IS NOT o.`" + column + "`");
+        try {
+            return statement.simpleQueryForLong();
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * 把旧表BLOB字段的内容逐行写入{@link BlobStore}，新表对应字段更新为引用
+     * 单个BLOB可能超过CursorWindow的大小（约2MB），用substr按{@link #BLOB_CHUNK_SIZE}分段读取并写入文件，
+     * 不把整个BLOB读入内存
+     *
+     * @param db
+     * @param codec
+     * @param oldTable
+     * @param tableName
+     */
+    private void moveToBlobStore(SQLiteDatabase db, FieldCodec.ExternalBlobCodec codec, String oldTable, String tableName) {
+        BlobStore store = codec.getStore();
+        store.resolveDir(db);
+        String key = "`" + IDColumn.PRIMARY_KEY + "`";
+        //TEXT值的length和substr按字符计算，转为BLOB后按字节计算
+        String value = "CAST(`" + codec.column + "` AS BLOB)";
+        String from = " FROM `" + oldTable + "` WHERE ";
+        SQLiteStatement nextStatement = db.compileStatement("SELECT " + key + from + "`" + codec.column + "` IS NOT NULL AND " + key + " > ? ORDER BY " + key + " LIMIT 1");
+        SQLiteStatement lengthStatement = db.compileStatement("SELECT length(" + value + ")" + from + key + " = ?");
+        String chunkSql = "SELECT substr(" + value + ", ?, " + BLOB_CHUNK_SIZE + ")" + from + key + " = ?";
+        SQLiteStatement updateStatement = db.compileStatement("UPDATE `" + tableName + "` SET `" + codec.column + "` = ? WHERE " + key + " = ?");
+        try {
+            long lastKey = Long.MIN_VALUE;
+            while (true) {
+                nextStatement.bindLong(1, lastKey);
+                try {
+                    lastKey = nextStatement.simpleQueryForLong();
+                } catch (SQLiteDoneException e) {
+                    break;
+                }
+                lengthStatement.bindLong(1, lastKey);
+                long length = lengthStatement.simpleQueryForLong();
+                BlobStore.Writer writer = store.newWriter();
+                String ref;
+                try {
+                    for (long offset = 1; offset <= length; offset += BLOB_CHUNK_SIZE) {
+                        Cursor cursor = db.rawQuery(chunkSql, new String[]{String.valueOf(offset), String.valueOf(lastKey)});
+                        try {
+                            if (cursor.moveToFirst()) {
+                                writer.write(cursor.getBlob(0));
+                            }
+                        } finally {
+                            cursor.close();
+                        }
+                    }
+                    ref = writer.commit();
+                } catch (IOException e) {
+                    writer.abort();
+                    throw e;
+                } catch (RuntimeException e) {
+                    writer.abort();
+                    throw e;
+                }
+                updateStatement.bindString(1, ref);
+                updateStatement.bindLong(2, lastKey);
+                updateStatement.execute();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("迁移" + tableName + "." + codec.column + "失败！", e);
+        } finally {
+            nextStatement.close();
+            lengthStatement.close();
+            updateStatement.close();
+        }
+    }
+
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         if (upgrade != null && upgrade.beginUpgrade(db, oldVersion, newVersion)) ;
@@ -0,0 +1,19 @@
+package com.sanders.db;
+
+/**
+ * 在同一个事务中执行的多个数据库操作
+ * Created by sanders on 15/6/23.
+ *
+ * @param <R> 返回值类型
+ */
+public interface TransactionCallback<R> {
+
+    /**
+     * 在事务中执行，抛出异常则回滚，正常返回则提交
+     * 在此方法中调用DBProxy的insert/update/delete等方法会加入当前事务，不会单独提交
+     *
+     * @param db
+     * @return
+     */
+    R doInTransaction(DBProxy db);
+}
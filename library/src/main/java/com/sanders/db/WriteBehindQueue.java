@@ -0,0 +1,261 @@
+package com.sanders.db;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 延迟写入队列，单个实体的insertOrUpdate先放入内存队列，由后台线程攒批后在一个事务中提交
+ * 达到batchSize条或第一条入队后经过flushInterval毫秒时提交；队列满时入队线程阻塞等待
+ * 整批提交失败时逐个实体单独提交，只有仍然失败的实体被丢弃，通过{@link OnWriteFailureListener}和flush报告
+ * Created by sanders on 15/6/25.
+ */
+final class WriteBehindQueue {
+
+    private final DBProxy proxy;
+    private final int batchSize;
+    private final long flushInterval;
+    private final OnWriteFailureListener listener;
+    /**
+     * 元素是实体或者FlushMarker
+     */
+    private final BlockingQueue<Object> queue;
+    private final Thread thread;
+    private volatile boolean running = true;
+    /**
+     * offer判断running和入队时持有，shutdown持有它修改running，之后入队的实体不会被遗漏
+     */
+    private final Object offerLock = new Object();
+    /**
+     * 上一个FlushMarker之后写入失败的实体数量和最后一个异常，只在后台线程中访问
+     */
+    private int failedCount;
+    private RuntimeException lastFailure;
+
+    WriteBehindQueue(DBProxy proxy, int batchSize, long flushInterval, int capacity, OnWriteFailureListener listener) {
+        if (batchSize < 1 || flushInterval < 1 || capacity < 1) {
+            throw new IllegalArgumentException("batchSize、flushInterval、capacity必须大于0！");
+        }
+        this.proxy = proxy;
+        this.batchSize = batchSize;
+        this.flushInterval = flushInterval;
+        this.listener = listener;
+        this.queue = new ArrayBlockingQueue<Object>(capacity);
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "DBProxy-write-behind");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * 实体入队，队列满时阻塞
+     *
+     * @param t
+     * @return 已关闭或等待时被中断返回false
+     */
+    boolean offer(IDColumn t) {
+        synchronized (offerLock) {
+            if (!running) {
+                return false;
+            }
+            try {
+                queue.put(t);
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * 立即提交调用此方法之前入队的所有实体，阻塞到提交完成
+     *
+     * @throws IllegalStateException 在runInTransaction中调用（后台线程需要写锁，会死锁），
+     *                               或者上次flush之后有实体写入失败
+     */
+    void flush() {
+        if (!running || Thread.currentThread() == thread) {
+            return;
+        }
+        if (proxy.inTransaction()) {
+            throw new IllegalStateException("不能在runInTransaction中flush！");
+        }
+        FlushMarker marker = new FlushMarker();
+        try {
+            queue.put(marker);
+            marker.latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (marker.error != null) {
+            throw new IllegalStateException(marker.failedCount + "个实体延迟写入失败！", marker.error);
+        }
+    }
+
+    /**
+     * 提交队列中剩余的实体并停止后台线程
+     *
+     * @throws IllegalStateException 同{@link #flush()}，后台线程仍然会停止
+     */
+    void shutdown() {
+        try {
+            flush();
+        } finally {
+            synchronized (offerLock) {
+                running = false;
+            }
+            //后台线程退出循环后提交队列中剩余的实体，包括刚才入队的
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void loop() {
+        List<IDColumn> batch = new ArrayList<IDColumn>(batchSize);
+        while (running) {
+            try {
+                Object first = queue.poll(flushInterval, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                long deadline = System.currentTimeMillis() + flushInterval;
+                Object next = first;
+                while (next != null) {
+                    if (next instanceof FlushMarker) {
+                        write(batch);
+                        release((FlushMarker) next);
+                        break;
+                    }
+                    batch.add((IDColumn) next);
+                    if (batch.size() >= batchSize) {
+                        write(batch);
+                        break;
+                    }
+                    long wait = deadline - System.currentTimeMillis();
+                    next = wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : queue.poll();
+                }
+                write(batch);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        drainRemaining(batch);
+    }
+
+    /**
+     * 停止时把剩余实体全部提交
+     *
+     * @param batch
+     */
+    private void drainRemaining(List<IDColumn> batch) {
+        Object next;
+        while ((next = queue.poll()) != null) {
+            if (next instanceof FlushMarker) {
+                write(batch);
+                release((FlushMarker) next);
+            } else {
+                batch.add((IDColumn) next);
+            }
+        }
+        write(batch);
+    }
+
+    /**
+     * 把上一个FlushMarker之后的写入失败交给调用flush的线程
+     *
+     * @param marker
+     */
+    private void release(FlushMarker marker) {
+        marker.failedCount = failedCount;
+        marker.error = lastFailure;
+        failedCount = 0;
+        lastFailure = null;
+        marker.latch.countDown();
+    }
+
+    /**
+     * 按实体类分组，在一个事务中提交；失败时逐个实体单独提交，一个实体出错不影响同批的其它实体
+     *
+     * @param batch
+     */
+    private void write(List<IDColumn> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        final Map<Class, List<IDColumn>> groups = new LinkedHashMap<Class, List<IDColumn>>();
+        List<IDColumn> entities = new ArrayList<IDColumn>(batch);
+        long[] keys = new long[entities.size()];
+        for (int i = 0; i < keys.length; i++) {
+            IDColumn t = entities.get(i);
+            keys[i] = t.getPrimaryKey();
+            List<IDColumn> group = groups.get(t.getClass());
+            if (group == null) {
+                group = new ArrayList<IDColumn>();
+                groups.put(t.getClass(), group);
+            }
+            group.add(t);
+        }
+        batch.clear();
+        try {
+            proxy.runInTransaction(new TransactionCallback<Void>() {
+                @Override
+                public Void doInTransaction(DBProxy db) {
+                    for (List<IDColumn> group : groups.values()) {
+                        db.insertOrUpdate(group);
+                    }
+                    return null;
+                }
+            });
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            for (int i = 0; i < keys.length; i++) {
+                //事务已回滚，恢复插入时设置的主键，否则重试时会按主键更新不存在的行
+                entities.get(i).setPrimaryKey(keys[i]);
+            }
+            for (IDColumn t : entities) {
+                writeOne(t);
+            }
+        }
+    }
+
+    private void writeOne(IDColumn t) {
+        try {
+            proxy.insertOrUpdate(t);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            failedCount++;
+            lastFailure = e;
+            if (listener != null) {
+                try {
+                    listener.onWriteFailure(t, e);
+                } catch (RuntimeException listenerError) {
+                    listenerError.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static class FlushMarker {
+        final CountDownLatch latch = new CountDownLatch(1);
+        /**
+         * 以下字段在latch.countDown()之前写入
+         */
+        int failedCount;
+        RuntimeException error;
+    }
+}